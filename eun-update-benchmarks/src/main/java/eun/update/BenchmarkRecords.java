@@ -0,0 +1,27 @@
+package eun.update;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * EUN records shaped like the ones a sensor returns, for the benchmarks
+ */
+final class BenchmarkRecords {
+    private BenchmarkRecords () {
+    }
+
+    /**
+     * @param imageBytes size of the decoded image
+     * @return the raw JSON record with a base64 image of that size
+     */
+    static byte[] record (int imageBytes) {
+        byte[] image = new byte[imageBytes];
+        new Random(8).nextBytes(image);
+        String record = "{\"id\":8,\"eun_type\":8" +
+                ",\"caption\":\"Application blocked\"" +
+                ",\"message\":\"Access to this page is <b>restricted<\\/b> by policy.\\n\"" +
+                ",\"image_type\":\"image/png\"" +
+                ",\"image\":\"" + Base64.getEncoder().encodeToString(image) + "\"}";
+        return record.getBytes(StandardCharsets.UTF_8);
+    }
+}
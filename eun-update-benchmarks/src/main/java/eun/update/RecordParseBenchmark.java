@@ -0,0 +1,56 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing an EUN record with an image and building the update body with a
+ * new message. jsonObject is the original org.json parse, put and
+ * re-serialize, eunRecord is the current field index and splice.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordParseBenchmark {
+    static final String NEW_MESSAGE = "Access to this page is <b>blocked</b>.";
+
+    @Param({"16384", "1048576"})
+    int imageBytes;
+
+    ResponseBuffer response;
+
+    @Setup
+    public void setup () throws IOException {
+        byte[] record = BenchmarkRecords.record(imageBytes);
+        response = new ResponseBuffer();
+        response.readFrom(new ByteArrayInputStream(record), record.length);
+    }
+
+    @Benchmark
+    public byte[] jsonObject () {
+        JSONObject jsonObject = new JSONObject(new String(response.array(), 0,
+                response.length(), StandardCharsets.UTF_8));
+        jsonObject.getString("message");
+        jsonObject.put("message", NEW_MESSAGE);
+        return jsonObject.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void eunRecord (Blackhole bh) throws IOException {
+        EunRecord record = EunRecord.parse(response);
+        bh.consume(record.getString("message"));
+        List<ByteBuffer> body = record.spliceField("message",
+                JSONObject.quote(NEW_MESSAGE).getBytes(StandardCharsets.UTF_8));
+        bh.consume(new SplicePublisher(body).contentLength());
+    }
+}
@@ -0,0 +1,70 @@
+package eun.update;
+
+import java.net.*;
+import java.net.http.HttpRequest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building the headers of a sensor request. urlConnection is the original
+ * getURLobject, uncachedBuilder builds the HttpClient request from scratch
+ * as each request did before templates, requestBuilder is the current copy
+ * of the template of the uri.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuildBenchmark {
+    static final String URI = "https://192.168.1.1"
+            + "/api/configure/customeun/CustomEUN/geteunbytype/8/1.json/";
+
+    EunUpdate eunUpdate;
+
+    @Setup
+    public void setup () {
+        eunUpdate = new EunUpdate("https://192.168.1.1",
+                EunUpdate.eunTypes.get("Application"), "cisco", "cisco", "", false);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public HttpURLConnection urlConnection () throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(URI).openConnection();
+        conn.setUseCaches( false );
+        HttpURLConnection.setFollowRedirects( false );
+        conn.setDoInput (true);
+        conn.setDoOutput(true);
+        conn.setRequestProperty( "Accept", "text/xml");
+        conn.setRequestProperty( "Content-type", "xml/txt");
+        conn.setRequestProperty( "Accept-Charset", "iso-8859-1,*,utf-8");
+        conn.setRequestProperty( "User-Agent", "CIDS Client/4.0");
+        conn.setRequestProperty( "Pragma", "no-cache");
+        conn.setRequestProperty("X-Requested-With", "XMLHttpRequest");
+        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        return conn;
+    }
+
+    @Benchmark
+    public HttpRequest uncachedBuilder () {
+        HttpRequest.Builder builder = SensorTransport.newRequest(URI);
+        builder.GET();
+        builder.header( "Accept", "text/xml");
+        builder.header( "Accept-Charset", "iso-8859-1,*,utf-8");
+        builder.header( "Accept-Encoding", SensorTransport.ACCEPT_ENCODING);
+        builder.header( "User-Agent", EunUpdate.USER_AGENT);
+        builder.header( "Pragma", "no-cache");
+        builder.header("X-Requested-With", "XMLHttpRequest");
+        builder.header("Content-Type", EunUpdate.FORM_CONTENT_TYPE);
+        return builder.build();
+    }
+
+    @Benchmark
+    public HttpRequest requestBuilder () {
+        return eunUpdate.getRequestBuilder(URI, null,
+                EunUpdate.FORM_CONTENT_TYPE).build();
+    }
+}
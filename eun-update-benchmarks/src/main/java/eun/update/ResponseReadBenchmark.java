@@ -0,0 +1,68 @@
+package eun.update;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading an EUN record response body, as processSensorRequest does.
+ * lineReader is the original BufferedReader/StringBuilder loop in the
+ * platform charset, responseBuffer is the current raw byte read sized from
+ * Content-Length, and gzipResponseBuffer the same read of a gzip response
+ * inflated on the way in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseReadBenchmark {
+    @Param({"16384", "1048576"})
+    int imageBytes;
+
+    byte[] record;
+
+    byte[] gzipRecord;
+
+    @Setup
+    public void setup () throws IOException {
+        record = BenchmarkRecords.record(imageBytes);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(record);
+        }
+        gzipRecord = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public String lineReader () throws IOException {
+        StringBuilder response = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(record)));
+        String line = null;
+        while((line = reader.readLine()) != null) {
+            response.append(line);
+        }
+        return response.toString();
+    }
+
+    @Benchmark
+    public ResponseBuffer responseBuffer () throws IOException {
+        ResponseBuffer response = new ResponseBuffer();
+        response.readFrom(new ByteArrayInputStream(record), record.length);
+        return response;
+    }
+
+    @Benchmark
+    public ResponseBuffer gzipResponseBuffer () throws IOException {
+        ResponseBuffer response = new ResponseBuffer();
+        try (InputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(gzipRecord), 16 * 1024)) {
+            response.readFrom(in, gzipRecord.length);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,95 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cold start of the tool: each invocation launches a new JVM, as a user or
+ * script does, and times it until it exits. The usage workload is the JVM
+ * and class loading alone, the fetch workload adds TLS, the HTTP client and
+ * a login and fetch against an in-process SensorSimulator. cds off disables
+ * class data sharing, default uses the JDK's archive, and appcds an archive
+ * of the tool's own classes built by StartupTraining, as the appcds profile
+ * does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    @Param({"usage", "fetch"})
+    String workload;
+
+    @Param({"off", "default", "appcds"})
+    String cds;
+
+    SensorSimulator simulator;
+
+    Path home;
+
+    List<String> command;
+
+    @Setup
+    public void setup () throws Exception {
+        simulator = new SensorSimulator();
+        simulator.port = 0;
+        simulator.start();
+        home = Files.createTempDirectory("eunstartup");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classPath = System.getProperty("java.class.path");
+        command = new ArrayList<String>();
+        command.add(java);
+        if (cds.equals("off")) {
+            command.add("-Xshare:off");
+        } else if (cds.equals("appcds")) {
+            Path archive = home.resolve("eun-update.jsa");
+            run(Arrays.asList(java, "-XX:ArchiveClassesAtExit=" + archive,
+                    "-Xlog:cds=error", "-cp", classPath,
+                    "eun.update.StartupTraining"));
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.add("-Duser.home=" + home);
+        command.add("-cp");
+        command.add(classPath);
+        command.add("eun.update.EunUpdate");
+        if (workload.equals("usage")) {
+            command.add("--help");
+        } else {
+            command.addAll(Arrays.asList("https://127.0.0.1:" + simulator.port(),
+                    "Application", "-u", "cisco/cisco", "-s", "0"));
+        }
+    }
+
+    @TearDown
+    public void tearDown () throws IOException {
+        simulator.stop();
+        try (Stream<Path> files = Files.walk(home)) {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int launch () throws Exception {
+        return run(command);
+    }
+
+    private static int run (List<String> command) throws Exception {
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new IllegalStateException(command + " exited with " + exitCode);
+        }
+        return exitCode;
+    }
+}
@@ -0,0 +1,71 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The full login, fetch and update cycle of one sensor against an
+ * in-process SensorSimulator. The message alternates between two files so
+ * every cycle really writes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateCycleBenchmark {
+    @Param({"16384", "1048576"})
+    int imageBytes;
+
+    SensorSimulator simulator;
+
+    String sensorUrl;
+
+    String[] messageFiles = new String[2];
+
+    int next = 0;
+
+    PrintStream console;
+
+    @Setup
+    public void setup () throws Exception {
+        simulator = new SensorSimulator();
+        simulator.port = 0;
+        simulator.imageBytes = imageBytes;
+        simulator.start();
+        sensorUrl = "https://127.0.0.1:" + simulator.port();
+        for (int n = 0; n < messageFiles.length; n++) {
+            Path file = Files.createTempFile("eunbench", ".txt");
+            Files.write(file, ("Access is <b>blocked</b> " + n)
+                    .getBytes(StandardCharsets.UTF_8));
+            file.toFile().deleteOnExit();
+            messageFiles[n] = file.toString();
+        }
+        // EunUpdate reports through System.out
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown () {
+        System.setOut(console);
+        simulator.stop();
+    }
+
+    @Benchmark
+    public boolean loginFetchUpdate () {
+        next ^= 1;
+        EunUpdate eunUpdate = new EunUpdate(sensorUrl,
+                EunUpdate.eunTypes.get("Application"), "cisco", "cisco",
+                messageFiles[next], false);
+        if (!eunUpdate.processUpdate()) {
+            throw new IllegalStateException(eunUpdate.statusMessage);
+        }
+        return true;
+    }
+}
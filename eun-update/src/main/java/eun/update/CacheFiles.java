@@ -0,0 +1,173 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Reads and writes the properties files kept in ~/.eunupdate.
+ * The directory and files are readable by the owner only, and a file is
+ * written to a temp file and moved into place, so a crash never leaves a
+ * partial file behind. The caches collect their changes and merge them
+ * into the file in batches, under a lock file, so concurrent runs sharing
+ * the directory keep each other's entries.
+ */
+class CacheFiles {
+    // changed entries that make a cache write its file, or a quarter of
+    // the file if that is more, so writing a growing file stays linear
+    static final int FLUSH_ENTRIES = 256;
+
+    // longest time a change waits to be written while the cache is in use
+    static final long FLUSH_MILLIS = 5000;
+
+    private CacheFiles () {
+    }
+
+    /**
+     * @param name the file name
+     * @return the file in the user's .eunupdate directory
+     */
+    static Path defaultFile (String name) {
+        return Paths.get(System.getProperty("user.home"), ".eunupdate", name);
+    }
+
+    /**
+     * Loads a properties file, an unreadable file is treated as empty
+     * @param file the file to read
+     * @param entries receives the properties
+     */
+    static void load (Path file, Properties entries) {
+        if (Files.exists(file)) {
+            try (Reader in = Files.newBufferedReader(file)) {
+                entries.load(in);
+            } catch (IOException e) {
+                System.out.println("Ignoring unreadable cache " + file);
+            }
+        }
+    }
+
+    /**
+     * @param changes the number of entries changed since the last write
+     * @param size the number of entries in the cache
+     * @param lastFlush when the cache was last written
+     * @return true if the changes should be written now
+     */
+    static boolean isDue (int changes, int size, long lastFlush) {
+        return changes >= Math.max(FLUSH_ENTRIES, size / 4)
+                || (changes > 0 && System.currentTimeMillis() - lastFlush >= FLUSH_MILLIS);
+    }
+
+    /**
+     * Applies changes to the current content of a properties file. The file
+     * is re-read under an exclusive lock on a sibling .lock file, so the
+     * entries other processes wrote since it was loaded are kept.
+     * @param file the file to update
+     * @param changes the changed keys, a null value removes the key
+     * @param stale drops entries of the file, e.g. expired ones, may be null
+     * @param comment the header comment
+     * @return the entries now in the file
+     * @throws IOException if the file can't be locked or written
+     */
+    static Properties merge (Path file, Map<String, String> changes,
+            Predicate<String> stale, String comment) throws IOException {
+        Path dir = createDirectory(file);
+        Path lockFile = dir.resolve(file.getFileName() + ".lock");
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try (FileChannel channel = isPosix(dir)
+                ? FileChannel.open(lockFile, options,
+                        PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rw-------")))
+                : FileChannel.open(lockFile, options)) {
+            FileLock lock = channel.lock();
+            try {
+                return mergeLocked(file, changes, stale, comment);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Does the work of merge while the lock is held
+     */
+    private static Properties mergeLocked (Path file, Map<String, String> changes,
+            Predicate<String> stale, String comment) throws IOException {
+        Properties entries = new Properties();
+        load(file, entries);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                entries.remove(change.getKey());
+            } else {
+                entries.setProperty(change.getKey(), change.getValue());
+            }
+        }
+        if (stale != null) {
+            entries.values().removeIf(value -> stale.test((String) value));
+        }
+        store(file, entries, comment);
+        return entries;
+    }
+
+    /**
+     * Writes a properties file with owner-only permissions
+     * @param file the file to replace
+     * @param entries the properties to write
+     * @param comment the header comment
+     * @throws IOException if the file can't be written
+     */
+    static void store (Path file, Properties entries, String comment)
+            throws IOException {
+        Path dir = createDirectory(file);
+        boolean posix = isPosix(dir);
+        Path tmp;
+        if (posix) {
+            tmp = Files.createTempFile(dir, "cache", ".tmp",
+                    PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            tmp = Files.createTempFile(dir, "cache", ".tmp");
+            File f = tmp.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        try (Writer out = Files.newBufferedWriter(tmp)) {
+            entries.store(out, comment);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Creates the directory of a file, owner-only, if it does not exist
+     * @param file a file in the directory
+     * @return the directory
+     * @throws IOException if the directory can't be created
+     */
+    static Path createDirectory (Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (!Files.exists(dir)) {
+            if (isPosix(dir)) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(dir);
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * @param path a path
+     * @return true if its file system has POSIX permissions
+     */
+    static boolean isPosix (Path path) {
+        return path.getFileSystem().supportedFileAttributeViews()
+                .contains("posix");
+    }
+}
@@ -0,0 +1,99 @@
+package eun.update;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breakers keyed by sensor host and port.
+ * After a run of consecutive failures the circuit of a sensor opens, and
+ * requests to it fail at once instead of each waiting for its timeouts.
+ * Once the open time has passed, one trial request is let through: success
+ * closes the circuit, failure opens it again. A trial that never reports
+ * back is given up after the open time, so the circuit can't stay half
+ * open.
+ */
+class CircuitBreaker {
+    static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    static final long DEFAULT_OPEN_MILLIS = 30000;
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private final Map<String, State> states = new ConcurrentHashMap<String, State>();
+
+    /**
+     * The circuit of one sensor, guarded by itself
+     */
+    private static class State {
+        int failures = 0;
+        long openUntil = 0;
+        boolean trial = false;
+        long trialStarted = 0;
+    }
+
+    /**
+     * @param failureThreshold consecutive failures that open a circuit
+     * @param openMillis how long a circuit stays open before a trial
+     */
+    CircuitBreaker (int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @param key the sensor "host:port"
+     * @return true if a request may be sent, false if the circuit is open
+     */
+    boolean allow (String key) {
+        State state = states.get(key);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            if (state.failures < failureThreshold) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now < state.openUntil
+                    || (state.trial && now - state.trialStarted < openMillis)) {
+                return false;
+            }
+            state.trial = true;
+            state.trialStarted = now;
+            return true;
+        }
+    }
+
+    /**
+     * @param key the sensor "host:port"
+     */
+    void success (String key) {
+        State state = states.get(key);
+        if (state != null) {
+            synchronized (state) {
+                state.failures = 0;
+                state.trial = false;
+            }
+        }
+    }
+
+    /**
+     * @param key the sensor "host:port"
+     */
+    void failure (String key) {
+        State state = states.computeIfAbsent(key, k -> new State());
+        synchronized (state) {
+            ++state.failures;
+            if (state.failures >= failureThreshold
+                    && (state.trial || state.failures == failureThreshold)) {
+                SensorLog.warn(key, null, null, "Circuit open",
+                        "failures", state.failures, "retryInSeconds",
+                        openMillis / 1000);
+                state.openUntil = System.currentTimeMillis() + openMillis;
+            }
+            state.trial = false;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package eun.update;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a sensor whose circuit breaker is
+ * open, the request never leaves the client
+ */
+class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CircuitOpenException (String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,214 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous client of one sensor, for calling the updater from other
+ * Java programs without a new JVM. Each call runs the same login, fetch and
+ * update steps as the command line on an executor, and completes its future
+ * with a typed result, or exceptionally with an EunException, instead of
+ * printing. The request log is off unless enableLogging is called. All
+ * clients share the HTTP client and its connection pool, and
+ * clients created without an executor share one virtual thread executor,
+ * so a client per sensor costs next to nothing. The session cookie is kept
+ * in memory and reused by every call of the client.
+ */
+public class EunClient {
+    // runs the calls of clients created without an executor
+    private static final ExecutorService DEFAULT_EXECUTOR =
+            Executors.newVirtualThreadPerTaskExecutor();
+
+    private static final PrintStream NO_OUTPUT =
+            new PrintStream(OutputStream.nullOutputStream());
+
+    private final String sensorUrl;
+
+    private final String username;
+
+    private final String password;
+
+    private final Executor executor;
+
+    // session cookies of this client, never written to disk
+    private final SessionCache sessionCache =
+            new SessionCache(null, SessionCache.DEFAULT_TTL_MINUTES);
+
+    /**
+     * @param sensorUrl the sensor protocol and IP part, e.g. https://10.0.0.1
+     * @param username sensor username
+     * @param password sensor password
+     */
+    public EunClient (String sensorUrl, String username, String password) {
+        this(sensorUrl, username, password, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * @param sensorUrl the sensor protocol and IP part, e.g. https://10.0.0.1
+     * @param username sensor username
+     * @param password sensor password
+     * @param executor runs the calls, the requests block its threads
+     */
+    public EunClient (String sensorUrl, String username, String password,
+            Executor executor) {
+        this.sensorUrl = sensorUrl;
+        this.username = username;
+        this.password = password;
+        this.executor = executor;
+    }
+
+    /**
+     * Writes the structured request log, retries and failures at warn, off
+     * by default for library callers. Call before the first request.
+     * @param level error, warn, info or debug
+     * @param file the file to append to, null for stderr
+     */
+    public static void enableLogging (String level, Path file) {
+        SensorLog.Level parsed = SensorLog.parseLevel(level);
+        if (parsed == null) {
+            throw new IllegalArgumentException("Unknown log level " + level);
+        }
+        SensorLog.configure(parsed, file);
+    }
+
+    /**
+     * @return the EUN type names, in type code order
+     */
+    public static Set<String> eunTypes () {
+        return Collections.unmodifiableSet(EunUpdate.eunTypes.keySet());
+    }
+
+    /**
+     * Retrieves an EUN record
+     * @param eunType the EUN type name, e.g. Application
+     * @return the record, or an EunException if the login or fetch failed
+     */
+    public CompletableFuture<EunRecord> fetch (String eunType) {
+        EunUpdate eunUpdate = newEunUpdate(eunType);
+        return CompletableFuture.supplyAsync(() -> {
+            EunRecord record = eunUpdate.processFetch();
+            if (record == null) {
+                throw failure(eunUpdate, eunType);
+            }
+            return record;
+        }, executor);
+    }
+
+    /**
+     * Replaces the message of an EUN record, unless it already has it
+     * @param eunType the EUN type name, e.g. Application
+     * @param message the new message text
+     * @return the outcome, or an EunException if a step failed
+     */
+    public CompletableFuture<UpdateResult> update (String eunType,
+            String message) {
+        return update(eunType, message, null);
+    }
+
+    /**
+     * Replaces the message or image of an EUN record, unless it already has
+     * them. The image is streamed from its file.
+     * @param eunType the EUN type name, e.g. Application
+     * @param message the new message text, null to keep the message
+     * @param imageFile the new image, null to keep the image
+     * @return the outcome, or an EunException if a step failed
+     */
+    public CompletableFuture<UpdateResult> update (String eunType,
+            String message, Path imageFile) {
+        if (message == null && imageFile == null) {
+            throw new IllegalArgumentException("Nothing to update");
+        }
+        EunUpdate eunUpdate = newEunUpdate(eunType);
+        eunUpdate.updateMessage = message;
+        return CompletableFuture.supplyAsync(() -> {
+            if (imageFile != null) {
+                try {
+                    eunUpdate.imageFile = new ImageFile(imageFile);
+                } catch (IOException e) {
+                    throw new CompletionException(new EunException(sensorUrl,
+                            eunType, "Unable to read " + imageFile, e,
+                            EunException.Kind.LOCAL_FILE, -1));
+                }
+            }
+            if (!eunUpdate.processUpdate()) {
+                throw failure(eunUpdate, eunType);
+            }
+            return new UpdateResult(sensorUrl, eunType, eunUpdate.updated,
+                    eunUpdate.statusMessage);
+        }, executor);
+    }
+
+    private EunUpdate newEunUpdate (String eunType) {
+        String getPageSegment = EunUpdate.eunTypes.get(eunType);
+        if (getPageSegment == null) {
+            throw new IllegalArgumentException("Unknown EUN type " + eunType);
+        }
+        EunUpdate eunUpdate = new EunUpdate(sensorUrl, getPageSegment,
+                username, password, "", false);
+        eunUpdate.out = NO_OUTPUT;
+        eunUpdate.sessionCache = sessionCache;
+        return eunUpdate;
+    }
+
+    private CompletionException failure (EunUpdate eunUpdate, String eunType) {
+        return new CompletionException(new EunException(sensorUrl, eunType,
+                eunUpdate.statusMessage, eunUpdate.lastFailure));
+    }
+
+    /**
+     * The outcome of a successful update call
+     */
+    public static final class UpdateResult {
+        private final String sensorUrl;
+
+        private final String eunType;
+
+        private final boolean updated;
+
+        private final String status;
+
+        UpdateResult (String sensorUrl, String eunType, boolean updated,
+                String status) {
+            this.sensorUrl = sensorUrl;
+            this.eunType = eunType;
+            this.updated = updated;
+            this.status = status;
+        }
+
+        /**
+         * @return the sensor protocol and IP part
+         */
+        public String getSensorUrl () {
+            return sensorUrl;
+        }
+
+        /**
+         * @return the EUN type name
+         */
+        public String getEunType () {
+            return eunType;
+        }
+
+        /**
+         * @return true if the record was sent, false if the sensor already
+         *         had the message and image
+         */
+        public boolean isUpdated () {
+            return updated;
+        }
+
+        /**
+         * @return the status line, e.g. "EUN message updated"
+         */
+        public String getStatus () {
+            return status;
+        }
+
+        @Override
+        public String toString () {
+            return sensorUrl + " " + eunType + ": " + status;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package eun.update;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+
+/**
+ * Completes an EunClient future that failed, with the status line the
+ * command line would have printed as its message, and the kind of failure
+ * so callers can react without parsing the message
+ */
+public class EunException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why a call failed
+     */
+    public enum Kind {
+        /** the sensor refused the login or the session */
+        AUTHENTICATION,
+        /** connecting or waiting for response data timed out */
+        TIMEOUT,
+        /** the circuit of the sensor is open after repeated failures, the
+            request was not sent */
+        CIRCUIT_OPEN,
+        /** the sensor answered with an HTTP error status */
+        HTTP_STATUS,
+        /** the sensor could not be reached or the connection failed */
+        CONNECTION,
+        /** the record was missing, malformed or changed during the update */
+        RECORD,
+        /** a local file, such as the new image, could not be read */
+        LOCAL_FILE
+    }
+
+    private final String sensorUrl;
+
+    private final String eunType;
+
+    private final Kind kind;
+
+    private final int httpStatus;
+
+    EunException (String sensorUrl, String eunType, String message,
+            Throwable cause) {
+        this(sensorUrl, eunType, message, cause, kindOf(cause), statusOf(cause));
+    }
+
+    EunException (String sensorUrl, String eunType, String message,
+            Throwable cause, Kind kind, int httpStatus) {
+        super(message, cause);
+        this.sensorUrl = sensorUrl;
+        this.eunType = eunType;
+        this.kind = kind;
+        this.httpStatus = httpStatus;
+    }
+
+    /**
+     * @return the sensor protocol and IP part
+     */
+    public String getSensorUrl () {
+        return sensorUrl;
+    }
+
+    /**
+     * @return the EUN type name
+     */
+    public String getEunType () {
+        return eunType;
+    }
+
+    /**
+     * @return why the call failed
+     */
+    public Kind getKind () {
+        return kind;
+    }
+
+    /**
+     * @return the HTTP status of the failed request, or -1 if the sensor
+     *         sent none
+     */
+    public int getHttpStatus () {
+        return httpStatus;
+    }
+
+    /**
+     * @param cause the failure of the last request, null if every request
+     *        succeeded and a later step failed
+     */
+    private static Kind kindOf (Throwable cause) {
+        if (cause == null) {
+            return Kind.RECORD;
+        }
+        if (cause instanceof SessionExpiredException) {
+            return Kind.AUTHENTICATION;
+        }
+        if (cause instanceof CircuitOpenException) {
+            return Kind.CIRCUIT_OPEN;
+        }
+        if (cause instanceof HttpStatusException) {
+            return Kind.HTTP_STATUS;
+        }
+        if (cause instanceof HttpTimeoutException
+                || cause instanceof SocketTimeoutException) {
+            return Kind.TIMEOUT;
+        }
+        return Kind.CONNECTION;
+    }
+
+    private static int statusOf (Throwable cause) {
+        if (cause instanceof HttpStatusException) {
+            return ((HttpStatusException) cause).status;
+        }
+        if (cause instanceof SessionExpiredException) {
+            return ((SessionExpiredException) cause).status;
+        }
+        return -1;
+    }
+}
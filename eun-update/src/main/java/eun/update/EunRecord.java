@@ -0,0 +1,312 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * An EUN db record, kept as the raw JSON bytes returned by the sensor.
+ * Parsing walks the bytes once and only records where each top-level
+ * field's value starts and ends, nested values are skipped over. Small
+ * fields such as message are decoded from UTF-8 when asked for, large
+ * fields such as the image binary are never turned into Strings, so a
+ * record costs about its own size on the heap.
+ */
+public class EunRecord {
+    private final byte[] data;
+
+    private final int length;
+
+    // top-level field name to {valueStart, valueEnd} offsets in data
+    private final Map<String, int[]> fields = new LinkedHashMap<String, int[]>();
+
+    private EunRecord (byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+
+    /**
+     * Indexes the top-level fields of a JSON object response
+     * @param response the raw response, not copied
+     * @return the record
+     * @throws IOException if the response is not a JSON object
+     */
+    static EunRecord parse (ResponseBuffer response) throws IOException {
+        EunRecord record = new EunRecord(response.array(), response.length());
+        record.index();
+        return record;
+    }
+
+    /**
+     * @param name the field name
+     * @return true if the record has a top-level field of that name
+     */
+    public boolean has (String name) {
+        return fields.containsKey(name);
+    }
+
+    /**
+     * @return the top-level field names in record order
+     */
+    public Set<String> fieldNames () {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    /**
+     * Decodes a string field
+     * @param name the field name
+     * @return the decoded value, or null if the field is missing or not a
+     *         string
+     * @throws IOException if the string is malformed
+     */
+    public String getString (String name) throws IOException {
+        int[] span = fields.get(name);
+        if (span == null || data[span[0]] != '"') {
+            return null;
+        }
+        return decodeString(span[0], span[1]);
+    }
+
+    /**
+     * @param name the field name
+     * @return {start, end} of the raw JSON value in array(), or null if the
+     *         field is missing. A string value includes its quotes.
+     */
+    int[] valueSpan (String name) {
+        int[] span = fields.get(name);
+        return span == null ? null : span.clone();
+    }
+
+    /**
+     * @return the raw record bytes, valid up to length()
+     */
+    byte[] array () {
+        return data;
+    }
+
+    /**
+     * @return the number of bytes in the record
+     */
+    public int length () {
+        return length;
+    }
+
+    /**
+     * Builds the body of an update that replaces one field. The parts are
+     * views over the record bytes, only the new value is new memory.
+     * @param name the field to replace
+     * @param rawValue the new value, already JSON encoded
+     * @return the parts of the updated record in order
+     * @throws IOException if the record has no such field
+     */
+    List<ByteBuffer> spliceField (String name, byte[] rawValue)
+            throws IOException {
+        return spliceFields(Collections.singletonMap(name,
+                ByteBuffer.wrap(rawValue)));
+    }
+
+    /**
+     * Builds the body of an update that replaces several fields. The parts
+     * are views over the record bytes and the new values.
+     * @param values field name to the new value, already JSON encoded, or
+     *        to null for a value the caller streams in its place
+     * @return the parts of the updated record in order, null where a
+     *         streamed value goes
+     * @throws IOException if the record lacks one of the fields
+     */
+    List<ByteBuffer> spliceFields (Map<String, ByteBuffer> values)
+            throws IOException {
+        List<String> names = new ArrayList<String>(values.keySet());
+        for (String name : names) {
+            if (!fields.containsKey(name)) {
+                throw new IOException("EUN record has no " + name + " field");
+            }
+        }
+        names.sort((a, b) -> fields.get(a)[0] - fields.get(b)[0]);
+        List<ByteBuffer> parts = new ArrayList<ByteBuffer>(2 * names.size() + 1);
+        int pos = 0;
+        for (String name : names) {
+            int[] span = fields.get(name);
+            parts.add(ByteBuffer.wrap(data, pos, span[0] - pos));
+            parts.add(values.get(name));
+            pos = span[1];
+        }
+        parts.add(ByteBuffer.wrap(data, pos, length - pos));
+        return parts;
+    }
+
+    /**
+     * Writes the raw record
+     * @param out the destination
+     * @throws IOException if the write fails
+     */
+    public void writeTo (OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    /**
+     * @return the raw record as text
+     */
+    @Override
+    public String toString () {
+        return new String(data, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // ************  pull parser over the raw bytes  ************
+
+    private void index () throws IOException {
+        int pos = skipWhitespace(0);
+        expect(pos, '{');
+        pos = skipWhitespace(pos + 1);
+        if (pos < length && data[pos] == '}') {
+            return;
+        }
+        while (true) {
+            expect(pos, '"');
+            int keyEnd = skipString(pos);
+            String key = decodeString(pos, keyEnd);
+            pos = skipWhitespace(keyEnd);
+            expect(pos, ':');
+            int valueStart = skipWhitespace(pos + 1);
+            int valueEnd = skipValue(valueStart);
+            fields.put(key, new int[] {valueStart, valueEnd});
+            pos = skipWhitespace(valueEnd);
+            if (pos < length && data[pos] == ',') {
+                pos = skipWhitespace(pos + 1);
+            } else {
+                expect(pos, '}');
+                return;
+            }
+        }
+    }
+
+    private int skipWhitespace (int pos) {
+        while (pos < length && (data[pos] == ' ' || data[pos] == '\t'
+                || data[pos] == '\r' || data[pos] == '\n')) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    private void expect (int pos, char c) throws IOException {
+        if (pos >= length || data[pos] != c) {
+            throw new IOException("Malformed EUN record, expected '" +c+
+                    "' at byte " + pos);
+        }
+    }
+
+    /**
+     * @param pos the opening quote
+     * @return the index after the closing quote
+     */
+    private int skipString (int pos) throws IOException {
+        ++pos;
+        while (pos < length) {
+            byte b = data[pos];
+            if (b == '\\') {
+                pos += 2;
+            } else if (b == '"') {
+                return pos + 1;
+            } else {
+                ++pos;
+            }
+        }
+        throw new IOException("Malformed EUN record, unterminated string");
+    }
+
+    /**
+     * @param pos the first byte of the value
+     * @return the index after the value
+     */
+    private int skipValue (int pos) throws IOException {
+        if (pos >= length) {
+            throw new IOException("Malformed EUN record, missing value");
+        }
+        byte b = data[pos];
+        if (b == '"') {
+            return skipString(pos);
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            while (pos < length) {
+                b = data[pos];
+                if (b == '"') {
+                    pos = skipString(pos);
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    ++depth;
+                } else if (b == '}' || b == ']') {
+                    if (--depth == 0) {
+                        return pos + 1;
+                    }
+                }
+                ++pos;
+            }
+            throw new IOException("Malformed EUN record, unterminated value");
+        }
+        // number, true, false or null
+        int start = pos;
+        while (pos < length && data[pos] != ',' && data[pos] != '}'
+                && data[pos] != ']' && data[pos] != ' ' && data[pos] != '\t'
+                && data[pos] != '\r' && data[pos] != '\n') {
+            ++pos;
+        }
+        if (pos == start) {
+            throw new IOException("Malformed EUN record, missing value");
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes a JSON string, the raw runs between escapes as UTF-8
+     * @param start the opening quote
+     * @param end the index after the closing quote
+     */
+    private String decodeString (int start, int end) throws IOException {
+        StringBuilder sb = new StringBuilder(end - start);
+        int run = start + 1;
+        int pos = run;
+        int last = end - 1;
+        while (pos < last) {
+            if (data[pos] != '\\') {
+                ++pos;
+                continue;
+            }
+            sb.append(new String(data, run, pos - run, StandardCharsets.UTF_8));
+            if (pos + 1 >= last) {
+                throw new IOException("Malformed EUN record, bad escape");
+            }
+            byte c = data[pos + 1];
+            switch (c) {
+            case '"': sb.append('"'); break;
+            case '\\': sb.append('\\'); break;
+            case '/': sb.append('/'); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+                if (pos + 6 > last) {
+                    throw new IOException("Malformed EUN record, bad escape");
+                }
+                try {
+                    sb.append((char) Integer.parseInt(new String(data, pos + 2,
+                            4, StandardCharsets.US_ASCII), 16));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed EUN record, bad escape");
+                }
+                pos += 4;
+                break;
+            default:
+                throw new IOException("Malformed EUN record, bad escape");
+            }
+            pos += 2;
+            run = pos;
+        }
+        sb.append(new String(data, run, last - run, StandardCharsets.UTF_8));
+        return sb.toString();
+    }
+}
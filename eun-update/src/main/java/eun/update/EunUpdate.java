@@ -0,0 +1,1961 @@
+// this line is from the seanThomasLeary user
+package eun.update;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.json.JSONObject;
+
+
+/**
+ * Workaround for CSCut17139 so users can update the EUN message on 
+ * CX sensors.
+ * This bug prevents the user from updating the End User Notification pages on
+ * Cisco CX sensors. The HTML which is normally embedded in the detail text 
+ * becomes visible and does not perform its markup function. The text gets 
+ * saved to the config database and causes display problems in the actual 
+ * EUN pages that are rendered to end users. Normally this type of problem 
+ * could be addressed by a few Curl messages. However in this case the 
+ * EUN update also includes the caption text, EUN type, image binary, 
+ * and other fields, since the fields of the database record are updated 
+ * all together as a blob.
+ * 
+ * To allow users to work around the problem, the entire db record has to be 
+ * retrieved, and then sent back in an update, with only the text changed. 
+ * This will at least fix the problem where users have inadvertently modified 
+ * the EUN detail text. Future revisions will allow users to modify other 
+ * fields in the db record.
+ */
+public class EunUpdate {
+    private static final String FOR_HELP_TYPE = 
+            "For help, type \"java EunUpdater\"";
+    
+    // Using the -v  parameter sets verbose=true, the debug events of the
+    // requests are logged when the SensorLog level is DEBUG
+    boolean verbose = false;
+
+    // sensor uri, the IP and protocol part
+    String uriIPSegment;
+
+    // sensor uri, the db retrieval part
+    String uriGetPageSegment;
+
+    // sensor username
+    StringBuilder sensorUsername;
+
+    // sensor password
+    StringBuilder sensorPassword;
+
+    // Session cookie returned by the server, replaced as a whole so
+    // parallel fetches over the same session always see a complete value
+    volatile StringBuilder sessionCookie = new StringBuilder();
+
+    // detail text file
+    String updateFile;
+
+    // replaces the image of the record, null to keep it
+    ImageFile imageFile;
+
+    // new message text, used instead of updateFile
+    String updateMessage;
+
+    // outcome of the last processUpdate call, used for fleet summaries
+    String statusMessage = "";
+
+    // set when the last processUpdate call changed the record
+    boolean updated = false;
+
+    // status and debug output, a null stream when used as a library
+    PrintStream out = System.out;
+
+    // per-sensor lines go to the log, tagged with the sensor and EUN type,
+    // instead of out, so parallel sensors don't interleave on stdout
+    boolean logProgress = false;
+
+    // on-disk session cookies, null if caching is disabled
+    SessionCache sessionCache;
+
+    // last-known record hashes, null if not tracked
+    RecordCache recordCache;
+
+    // fetch and compare only, never update
+    boolean verifyOnly = false;
+
+    // set by a verify-only run when the sensor differs from the desired or
+    // last-known state
+    boolean drift = false;
+
+    // the failure of the last request of a login, fetch or update step,
+    // null if it succeeded, tells library callers why a call failed. Set
+    // by serial steps only, parallel fetches keep theirs in their Outcome.
+    volatile IOException lastFailure;
+
+    // true if the current session cookie came from the session cache
+    private boolean cachedSession = false;
+
+    // per-phase latencies, null if not recorded
+    LatencyMetrics metrics;
+
+    // paces the login, fetch and update requests, null if not paced
+    RequestScheduler scheduler;
+
+    // outcome of each update, null if not journaled
+    RolloutJournal journal;
+
+    // how failed requests are sent again
+    RetryPolicy retryPolicy = new RetryPolicy(RetryPolicy.DEFAULT_RETRIES);
+
+    // processFetchAll saves the records here instead of printing them, null
+    // if not taking a snapshot
+    SnapshotArchive snapshot;
+
+    /**
+     * The outcome of one request, retries included. Each request has its
+     * own, so the parallel fetches of a sensor never see each other's flags.
+     */
+    private static final class Outcome {
+        boolean ok = false;
+
+        // the sensor rejected the session cookie
+        boolean sessionExpired = false;
+
+        // failed in a way that may still have reached the sensor
+        boolean maybeDelivered = false;
+
+        // the last attempt opened a new connection
+        boolean newConnection = false;
+
+        // System.nanoTime() when the first attempt got its slot
+        long start;
+
+        // why the request failed, null if it succeeded
+        IOException failure;
+    }
+
+    static final String USER_AGENT = "CIDS Client/4.0";
+
+    static final String LOGIN_SEGMENT = "/authentication/login/";
+
+    // the update request takes the whole EUN record as JSON
+    static final String UPDATE_EUN_SEGMENT =
+            "/api/configure/customeun/CustomEUN/updateeun.json/";
+
+    static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    // in type code order, which is also the order of "all" output
+    static HashMap<String, String> eunTypes = new LinkedHashMap<String, String>();
+
+    // init the euntypes
+    static
+    {
+        EunUpdate.eunTypes.put("WebReputation", "/api/configure/customeun/CustomEUN/geteunbytype/1/1.json/");
+        EunUpdate.eunTypes.put("FileType", "/api/configure/customeun/CustomEUN/geteunbytype/2/1.json/");
+        EunUpdate.eunTypes.put("UrlFiltering", "/api/configure/customeun/CustomEUN/geteunbytype/4/1.json/");
+        EunUpdate.eunTypes.put("Application", "/api/configure/customeun/CustomEUN/geteunbytype/8/1.json/");
+        EunUpdate.eunTypes.put("Destination", "/api/configure/customeun/CustomEUN/geteunbytype/16/1.json/");
+        EunUpdate.eunTypes.put("Warning", "/api/configure/customeun/CustomEUN/geteunbytype/64/2.json/");
+        EunUpdate.eunTypes.put("Authentication", "/api/configure/customeun/CustomEUN/geteunbytype/128/3.json/");
+
+    }
+
+    public static void usage () {
+        System.out.println("EunUpdate 21 Mar, 2015");
+        System.out.println("Usage:");
+        System.out.println("   EunUpdate sensorURL eunType -u user/passwd [-d filename] [-v] ");
+        System.out.println("   EunUpdate -f inventoryFile eunType [-u user/passwd] [-c credFile] [-p count] [-w] [-s minutes] [--verify-only] [--resume] [--journal file] [--snapshot file | --restore file] [--lease-dir directory [--shards n] [--worker-id name]] [--rate n] [--sensor-rate n] [--retries n] [--no-compression] [--connect-timeout s] [--read-timeout s] [--metrics-json file] [--metrics-prom file] [--log-level level] [--log-file file] [-m filename] [-i imagefile] [-v] ");
+        System.out.println("   EunUpdate --watch directory [-u user/passwd] [-c credFile] [-p count] [-s minutes] [--verify-only] [-v] ");
+        System.out.println("    -u sensor username and password, separated by the / char");
+        System.out.println("    -f inventoryFile, one sensor per line: sensorURL [user/passwd | @credName]");
+        System.out.println("       lines without credentials use -u, blank lines and # comments are ignored");
+        System.out.println("    -c credFile, properties file of credName=user/passwd for @credName references");
+        System.out.println("       (an environment variable of that name is used if the file has no entry)");
+        System.out.println("    -p maximum number of sensors updated at the same time [" +FleetUpdate.DEFAULT_CONCURRENCY+ "]");
+        System.out.println("       requests in flight start at " +RequestScheduler.DEFAULT_INITIAL_LIMIT+ " and adapt up to this count, backing off");
+        System.out.println("       when sensors fail or slow down");
+        System.out.println("    --journal file, append the outcome of each update, with the hashes of the record");
+        System.out.println("       before and as sent, to this file [~/.eunupdate/journal.log]");
+        System.out.println("    --resume skip the sensors the --journal file shows already have the message,");
+        System.out.println("       needs --journal so an unrelated rollout in the default journal is not matched");
+        System.out.println("    --snapshot file, save the records of the eun types to a zip file, each image stored once");
+        System.out.println("    --restore file, send the records of the eun types saved in a snapshot back to the sensors");
+        System.out.println("    --rate n, at most n requests per second over all sensors");
+        System.out.println("    --sensor-rate n, at most n requests per second to each sensor");
+        System.out.println("    --connect-timeout seconds to connect to a sensor [" +SensorTransport.DEFAULT_CONNECT_TIMEOUT_SECONDS+ "]");
+        System.out.println("    --read-timeout seconds to wait for response data from a sensor [" +SensorTransport.DEFAULT_READ_TIMEOUT_SECONDS+ "]");
+        System.out.println("    --no-compression ask the sensors for uncompressed responses, gzip and deflate");
+        System.out.println("       are offered by default");
+        System.out.println("    --retries n, times a failed request is sent again, after a random backoff [" +RetryPolicy.DEFAULT_RETRIES+ "]");
+        System.out.println("       updates are only sent again if the sensor cannot have applied them");
+        System.out.println("    -w pre-warm, connect to every sensor before the update phase starts");
+        System.out.println("    --lease-dir directory, run as one of several workers sharing this directory. The");
+        System.out.println("       inventory is split into shards, claimed through lease files, and the shards of a");
+        System.out.println("       worker that stops are taken over. Use a new directory for each rollout");
+        System.out.println("    --shards n, shards of a --lease-dir rollout, the same for every worker [" +ShardCoordinator.DEFAULT_SHARDS+ "]");
+        System.out.println("    --worker-id name, unique name of this worker [host-pid]");
+        System.out.println("    --watch directory, keep running and push every change of a message file. Each");
+        System.out.println("       subdirectory is a sensor group, with a " +WatchDaemon.INVENTORY_FILE+ " inventory and message files");
+        System.out.println("       named after the eun type, such as Application.txt");
+        System.out.println("    -s minutes a login session is reused from the session cache [" +SessionCache.DEFAULT_TTL_MINUTES+ "]");
+        System.out.println("       0 disables the cache, the cache file is ~/.eunupdate/sessions.properties");
+        System.out.println("    --verify-only fetch and report drift, never update. With -m, drift is a message");
+        System.out.println("       that differs from the file, otherwise a record that changed since the last run");
+        System.out.println("    --metrics-json file, write p50/p99/max latency and errors per phase, sensor and");
+        System.out.println("       eun type as JSON. The phases are connect, login, fetch, parse and update");
+        System.out.println("    --metrics-prom file, write the same summary in the Prometheus text format");
+        System.out.println("    -v Verbose, log the headers and bodies of the requests, same as --log-level debug");
+        System.out.println("    --log-level level, error, warn, info or debug [" +SensorLog.DEFAULT_LEVEL.name().toLowerCase()+ "]");
+        System.out.println("       events are tagged with the sensor, eun type and phase, large bodies are hashed");
+        System.out.println("    --log-file file, append the log to this file instead of stderr");
+        System.out.println("    -m MessageFilename the name of the file which contains the new message");
+        System.out.println("    -i ImageFilename the name of an image file that replaces the image of the record,");
+        System.out.println("       base64 encoded while it is sent");
+        System.out.println("   eunType must be one of, or a comma separated list of them, or all");
+        System.out.println("       WebReputation");
+        System.out.println("       FileType");
+        System.out.println("       UrlFiltering");
+        System.out.println("       Application [default]");
+        System.out.println("       Destination");
+        System.out.println("       Warning");
+        System.out.println("       Authentication");
+        System.out.println("   EunUpdate retrieves a specified EUN record and optionally updates the message.");
+        System.out.println("   The update is skipped if the sensor already has the new message.");
+        System.out.println("   If -d is not specified, the record is only retrieved.");
+        System.out.println("Example: update the EUN detail text for URL-filtering");
+        System.out.println("   java EunUpdate https://192.168.1.1 Application -u cisco/password -m ./myfile.txt");
+        System.out.println("Example: retrieve every EUN record of a sensor over one login");
+        System.out.println("   java EunUpdate https://192.168.1.1 all -u cisco/password");
+        System.out.println("Example: update the same text on every sensor in sensors.txt, 32 at a time");
+        System.out.println("   java EunUpdate -f sensors.txt Application -u cisco/password -m ./myfile.txt -p 32");
+        System.out.println("Example: push edits of ./eun/lab/Application.txt to the sensors in ./eun/lab/sensors.txt");
+        System.out.println("   java EunUpdate --watch ./eun -u cisco/password");
+    }
+
+     /**
+     * Main entry point
+     * @param args A list of command line parameters
+     */
+     public static void main (String[] args)
+     {
+         // protocol:ip and euntype is required
+         if (args.length < 3) {
+             usage();
+             return;
+         }
+
+         // fleet mode: -f inventoryFile takes the place of the sensorURL
+         String inventoryFile = null;
+         if ("-f".equals(args[0].toLowerCase())) {
+             inventoryFile = args[1];
+             args = Arrays.copyOfRange(args, 1, args.length);
+         }
+
+         // watch mode: --watch directory takes the place of the sensorURL
+         // and eunType, the groups and types come from the directory
+         String watchDir = null;
+         if ("--watch".equals(args[0].toLowerCase())) {
+             watchDir = args[1];
+             String[] watchArgs = new String[args.length];
+             watchArgs[0] = watchDir;
+             watchArgs[1] = "all";
+             System.arraycopy(args, 2, watchArgs, 2, args.length - 2);
+             args = watchArgs;
+         }
+
+         boolean verbose = false;
+         String user = new String();
+         String password = new String();
+         String updateFile = new String();
+         String imageFileName = null;
+         String credentialFile = null;
+         int concurrency = FleetUpdate.DEFAULT_CONCURRENCY;
+         boolean prewarm = false;
+         boolean verifyOnly = false;
+         int sessionTtl = SessionCache.DEFAULT_TTL_MINUTES;
+         String metricsJsonFile = null;
+         String metricsPromFile = null;
+         double globalRate = 0;
+         double sensorRate = 0;
+         String journalFile = null;
+         boolean resume = false;
+         int retries = RetryPolicy.DEFAULT_RETRIES;
+         int connectTimeout = SensorTransport.DEFAULT_CONNECT_TIMEOUT_SECONDS;
+         int readTimeout = SensorTransport.DEFAULT_READ_TIMEOUT_SECONDS;
+         String snapshotFile = null;
+         String restoreFile = null;
+         SensorLog.Level logLevel = null;
+         boolean compression = true;
+         String logFile = null;
+         String leaseDir = null;
+         int shards = ShardCoordinator.DEFAULT_SHARDS;
+         String workerId = null;
+
+         int acount = args.length - 1;
+         int i = 1;
+         while (i < acount) {
+             if ("-u".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     String userPass = new String(args[1+i+1]);
+                     String [] sbuf = userPass.split("/");
+                     if (sbuf.length > 0)
+                         user = sbuf[0];
+                     if (sbuf.length > 1)
+                         password = sbuf[1];
+                     if (sbuf.length > 2) {
+                         System.out.println("Too many user/password parameters");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few params for user/password");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("-m".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     updateFile = new String(args[1+i+1]);
+                     i += 2;
+                 } else {
+                     System.out.println("too few filename params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("-i".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     imageFileName = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few image filename params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("-c".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     credentialFile = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few credential file params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("-p".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     try {
+                         concurrency = Integer.parseInt(args[1+i+1]);
+                     } catch (NumberFormatException e) {
+                         concurrency = 0;
+                     }
+                     if (concurrency < 1) {
+                         System.out.println("Invalid concurrency [" +args[1+i+1]+ "]");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few concurrency params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("-s".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     try {
+                         sessionTtl = Integer.parseInt(args[1+i+1]);
+                     } catch (NumberFormatException e) {
+                         sessionTtl = -1;
+                     }
+                     if (sessionTtl < 0) {
+                         System.out.println("Invalid session minutes [" +args[1+i+1]+ "]");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few session cache params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--rate".equals(args[1+i+0].toLowerCase())
+                     || "--sensor-rate".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     double rate;
+                     try {
+                         rate = Double.parseDouble(args[1+i+1]);
+                     } catch (NumberFormatException e) {
+                         rate = 0;
+                     }
+                     if (!(rate > 0)) {
+                         System.out.println("Invalid rate [" +args[1+i+1]+ "]");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     if ("--rate".equals(args[1+i+0].toLowerCase())) {
+                         globalRate = rate;
+                     } else {
+                         sensorRate = rate;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few rate params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--retries".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     try {
+                         retries = Integer.parseInt(args[1+i+1]);
+                     } catch (NumberFormatException e) {
+                         retries = -1;
+                     }
+                     if (retries < 0) {
+                         System.out.println("Invalid retries [" +args[1+i+1]+ "]");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few retries params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--connect-timeout".equals(args[1+i+0].toLowerCase())
+                     || "--read-timeout".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     int seconds;
+                     try {
+                         seconds = Integer.parseInt(args[1+i+1]);
+                     } catch (NumberFormatException e) {
+                         seconds = 0;
+                     }
+                     if (seconds < 1) {
+                         System.out.println("Invalid timeout seconds [" +args[1+i+1]+ "]");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     if ("--connect-timeout".equals(args[1+i+0].toLowerCase())) {
+                         connectTimeout = seconds;
+                     } else {
+                         readTimeout = seconds;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few timeout params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--metrics-json".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     metricsJsonFile = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few metrics file params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--metrics-prom".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     metricsPromFile = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few metrics file params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--journal".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     journalFile = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few journal file params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--snapshot".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     snapshotFile = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few snapshot file params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--restore".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     restoreFile = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few restore file params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--lease-dir".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     leaseDir = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few lease directory params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--shards".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     try {
+                         shards = Integer.parseInt(args[1+i+1]);
+                     } catch (NumberFormatException e) {
+                         shards = 0;
+                     }
+                     if (shards < 1) {
+                         System.out.println("Invalid shard count [" +args[1+i+1]+ "]");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few shard params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--worker-id".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     workerId = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few worker id params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--log-level".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     logLevel = SensorLog.parseLevel(args[1+i+1]);
+                     if (logLevel == null) {
+                         System.out.println("Invalid log level [" +args[1+i+1]+ "]");
+                         System.out.println(FOR_HELP_TYPE);
+                         return;
+                     }
+                     i += 2;
+                 } else {
+                     System.out.println("too few log level params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--log-file".equals(args[1+i+0].toLowerCase())) {
+                 if ((i+1) < acount)  {
+                     logFile = args[1+i+1];
+                     i += 2;
+                 } else {
+                     System.out.println("too few log file params");
+                     System.out.println(FOR_HELP_TYPE);
+                     return;
+                 }
+             } else if ("--no-compression".equals(args[1+i+0].toLowerCase())) {
+                 compression = false;
+                 ++i;
+             } else if ("--resume".equals(args[1+i+0].toLowerCase())) {
+                 resume = true;
+                 ++i;
+             } else if ("--verify-only".equals(args[1+i+0].toLowerCase())) {
+                 verifyOnly = true;
+                 ++i;
+             } else if ("-w".equals(args[1+i+0].toLowerCase())) {
+                 prewarm = true;
+                 ++i;
+             } else if ("-v".equals(args[1+i+0].toLowerCase())) {
+                 verbose = true;
+                 ++i;
+             } else if ("-h".equals(args[1+i+0].toCharArray())) {
+                 usage();
+                 return;
+             } else if ("--h".equals(args[1+i+0].toLowerCase())) {
+                 usage();
+                 return;
+             } else if ("-help".equals(args[1+i+0].toLowerCase())) {
+                 usage();
+                 return;
+             } else if ("--help".equals(args[1+i+0].toLowerCase())) {
+                 usage();
+                 return;
+             } else if ("?".equals(args[1+i+0])) {
+                 usage();
+                 return;
+             } else if ("-?".equals(args[1+i+0])) {
+                 usage();
+                 return;
+             } else if ("--?".equals(args[1+i+0])) {
+                 usage();
+                 return;
+             } else {
+                 System.out.println("Unexpected parameter [" +args[1+i+0]+ "]");
+                 System.out.println(FOR_HELP_TYPE);
+                 return;
+             }
+         }
+         /**
+          * make sure either a user or a cookie is specified,
+          * otherwise assume user just wants help
+          */
+         if (user.length() == 0 && inventoryFile == null && watchDir == null) {
+             usage();
+             return;
+         }
+
+         // input params ok, start the EventCatcher
+         String ipSegment = args[0];
+         String eunType = args[1];
+         // validate the eun type
+         Map<String, String> selectedTypes = selectEunTypes(eunType);
+         if (selectedTypes == null) {
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+         if (watchDir != null && updateFile.length() > 0) {
+             System.out.println("The message files of --watch are in the watch directory");
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+         if (selectedTypes.size() > 1 && updateFile.length() > 0) {
+             System.out.println("A message file needs a single eun type");
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+         if (imageFileName != null && (watchDir != null || selectedTypes.size() > 1)) {
+             System.out.println("An image file needs a single eun type, and can't be used with --watch");
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+         if ((snapshotFile != null || restoreFile != null) && (watchDir != null
+                 || updateFile.length() > 0 || imageFileName != null || verifyOnly
+                 || (snapshotFile != null && restoreFile != null))) {
+             System.out.println("--snapshot and --restore can't be combined with -m, -i, --watch, --verify-only or each other");
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+
+         if (leaseDir != null && (inventoryFile == null || watchDir != null
+                 || snapshotFile != null)) {
+             System.out.println("--lease-dir needs an inventory file, and can't be used with --watch or --snapshot");
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+
+         ImageFile imageFile = null;
+         if (imageFileName != null) {
+             try {
+                 imageFile = new ImageFile(Paths.get(imageFileName));
+             } catch (IOException e) {
+                 System.out.println("Unable to read " +imageFileName+ " [" +e.getMessage()+ "]");
+                 return;
+             }
+         }
+
+         // -v logs the request details unless a level is given
+         if (logLevel == null) {
+             logLevel = verbose ? SensorLog.Level.DEBUG : SensorLog.DEFAULT_LEVEL;
+         }
+         SensorLog.configure(logLevel, logFile != null ? Paths.get(logFile) : null);
+
+         SensorTransport.configure(Duration.ofSeconds(connectTimeout),
+                 Duration.ofSeconds(readTimeout), compression);
+         RetryPolicy retryPolicy = new RetryPolicy(retries);
+
+         SessionCache sessionCache = null;
+         if (sessionTtl > 0) {
+             sessionCache = new SessionCache(SessionCache.defaultFile(), sessionTtl);
+         }
+         RecordCache recordCache = new RecordCache(RecordCache.defaultFile());
+         // the caches write their files in batches, the last batch at exit
+         Runtime.getRuntime().addShutdownHook(new Thread(recordCache::flush));
+         if (sessionCache != null) {
+             Runtime.getRuntime().addShutdownHook(new Thread(sessionCache::flush));
+         }
+         LatencyMetrics metrics = null;
+         if (metricsJsonFile != null || metricsPromFile != null) {
+             metrics = new LatencyMetrics();
+         }
+         RequestScheduler scheduler = new RequestScheduler(concurrency,
+                 globalRate, sensorRate);
+
+         // the default journal holds every rollout, resuming from it could
+         // skip sensors that only an unrelated rollout sent the same content
+         if (resume && journalFile == null) {
+             System.out.println("--resume needs the --journal file of the rollout to resume");
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+
+         // only runs that send a message or image are journaled
+         RolloutJournal journal = null;
+         if ((updateFile.length() > 0 || imageFile != null || watchDir != null)
+                 && !verifyOnly) {
+             Path file = journalFile != null ? Paths.get(journalFile)
+                     : RolloutJournal.defaultFile();
+             try {
+                 journal = new RolloutJournal(file, resume);
+             } catch (IOException e) {
+                 System.out.println("Unable to open journal " +file+ " [" +e.getMessage()+ "]");
+                 return;
+             }
+             // the last lines are forced to disk however the run ends
+             Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+         } else if (resume) {
+             System.out.println("--resume needs a message file");
+             System.out.println(FOR_HELP_TYPE);
+             return;
+         }
+
+         SnapshotArchive snapshot = null;
+         try {
+             if (snapshotFile != null) {
+                 snapshot = SnapshotArchive.create(Paths.get(snapshotFile));
+             } else if (restoreFile != null) {
+                 snapshot = SnapshotArchive.open(Paths.get(restoreFile));
+             }
+         } catch (IOException e) {
+             System.out.println("Unable to open snapshot " +(snapshotFile != null
+                     ? snapshotFile : restoreFile)+ " [" +e.getMessage()+ "]");
+             return;
+         }
+
+         if (watchDir != null) {
+             WatchDaemon daemon = new WatchDaemon(Paths.get(watchDir),
+                     credentialFile, user, password, verbose, concurrency,
+                     sessionCache);
+             daemon.recordCache = recordCache;
+             daemon.verifyOnly = verifyOnly;
+             daemon.metrics = metrics;
+             daemon.scheduler = scheduler;
+             daemon.journal = journal;
+             daemon.retryPolicy = retryPolicy;
+             daemon.metricsJsonFile = metricsJsonFile;
+             daemon.metricsPromFile = metricsPromFile;
+             try {
+                 daemon.run();
+             } catch (IOException e) {
+                 System.out.println("Unable to watch " +watchDir+ " [" +e.getMessage()+ "]");
+             } catch (InterruptedException e) {
+                 Thread.currentThread().interrupt();
+             }
+             return;
+         }
+         if (inventoryFile != null) {
+             List<FleetUpdate.SensorEntry> sensors;
+             try {
+                 sensors = FleetUpdate.readInventory(inventoryFile,
+                         credentialFile, user, password);
+             } catch (IOException e) {
+                 System.out.println("Unable to read inventory [" +e.getMessage()+ "]");
+                 return;
+             }
+             FleetUpdate fleet = new FleetUpdate(selectedTypes,
+                     updateFile, verbose, concurrency, prewarm, sessionCache);
+             fleet.recordCache = recordCache;
+             fleet.verifyOnly = verifyOnly;
+             fleet.metrics = metrics;
+             fleet.scheduler = scheduler;
+             fleet.journal = journal;
+             fleet.retryPolicy = retryPolicy;
+             fleet.imageFile = imageFile;
+             if (restoreFile != null) {
+                 fleet.restore = snapshot;
+             } else {
+                 fleet.snapshot = snapshot;
+             }
+             if (leaseDir != null) {
+                 ShardCoordinator coordinator = new ShardCoordinator(
+                         Paths.get(leaseDir), shards, workerId != null ? workerId
+                         : ShardCoordinator.defaultWorkerId(), fleet);
+                 try {
+                     FleetUpdate.printSummary(coordinator.run(sensors,
+                             rolloutKey(sensors, selectedTypes, updateFile,
+                             imageFile, restoreFile, verifyOnly)));
+                 } catch (IOException e) {
+                     System.out.println("Unable to use lease directory " +leaseDir+ " [" +e.getMessage()+ "]");
+                     return;
+                 } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     return;
+                 }
+             } else {
+                 FleetUpdate.printSummary(fleet.run(sensors));
+             }
+             System.out.println(scheduler.summary());
+             closeSnapshot(snapshot, restoreFile == null);
+             writeMetrics(metrics, metricsJsonFile, metricsPromFile);
+             return;
+         }
+         if (selectedTypes.size() > 1 || snapshot != null) {
+             EunUpdate eunUpdate = new EunUpdate(ipSegment, null,
+                     user, password, updateFile, verbose);
+             eunUpdate.sessionCache = sessionCache;
+             eunUpdate.recordCache = recordCache;
+             eunUpdate.verifyOnly = verifyOnly;
+             eunUpdate.metrics = metrics;
+             eunUpdate.scheduler = scheduler;
+             eunUpdate.retryPolicy = retryPolicy;
+             if (restoreFile != null) {
+                 eunUpdate.processRestore(snapshot, selectedTypes);
+             } else {
+                 eunUpdate.snapshot = snapshot;
+                 eunUpdate.processFetchAll(selectedTypes);
+             }
+             closeSnapshot(snapshot, restoreFile == null);
+             writeMetrics(metrics, metricsJsonFile, metricsPromFile);
+             return;
+         }
+         String uriGetPageSegment = selectedTypes.values().iterator().next();
+         EunUpdate eunUpdate = new EunUpdate(ipSegment, uriGetPageSegment, 
+                 user, password, updateFile, verbose);
+         eunUpdate.sessionCache = sessionCache;
+         eunUpdate.recordCache = recordCache;
+         eunUpdate.verifyOnly = verifyOnly;
+         eunUpdate.metrics = metrics;
+         eunUpdate.scheduler = scheduler;
+         eunUpdate.journal = journal;
+         eunUpdate.retryPolicy = retryPolicy;
+         eunUpdate.imageFile = imageFile;
+         eunUpdate.processUpdate();
+         writeMetrics(metrics, metricsJsonFile, metricsPromFile);
+
+     }
+
+     /**
+      * Identifies a sharded rollout, so workers started with different
+      * inventories, types or messages can't share a lease directory
+      * @param sensors the inventory
+      * @param selectedTypes the EUN types
+      * @param updateFile the message file, may be empty
+      * @param imageFile the image, may be null
+      * @param restoreFile the snapshot restored, may be null
+      * @param verifyOnly true if nothing is written
+      * @return hex SHA-256 over all of them
+      * @throws IOException if the message or image can't be read
+      */
+     static String rolloutKey (List<FleetUpdate.SensorEntry> sensors,
+             Map<String, String> selectedTypes, String updateFile,
+             ImageFile imageFile, String restoreFile, boolean verifyOnly)
+             throws IOException {
+         StringBuilder key = new StringBuilder();
+         key.append(selectedTypes.keySet()).append(' ').append(verifyOnly);
+         if (updateFile.length() > 0) {
+             key.append(" message ").append(RecordCache.hash(new String(
+                     Files.readAllBytes(Paths.get(updateFile)),
+                     StandardCharsets.UTF_8)));
+         }
+         if (imageFile != null) {
+             key.append(" image ").append(imageFile.hash());
+         }
+         if (restoreFile != null) {
+             key.append(" restore ").append(restoreFile);
+         }
+         List<String> urls = new ArrayList<String>();
+         for (FleetUpdate.SensorEntry sensor : sensors) {
+             urls.add(sensor.sensorUrl);
+         }
+         Collections.sort(urls);
+         key.append(' ').append(urls);
+         return RecordCache.hash(key.toString());
+     }
+
+     /**
+      * Finishes a snapshot, printing its summary if it was written
+      * @param snapshot the snapshot, may be null
+      * @param written true if the run saved records to it
+      */
+     static void closeSnapshot (SnapshotArchive snapshot, boolean written) {
+         if (snapshot == null) {
+             return;
+         }
+         try {
+             snapshot.close();
+             if (written) {
+                 System.out.println(snapshot.summary());
+             }
+         } catch (IOException e) {
+             System.out.println("Unable to write snapshot [" +e.getMessage()+ "]");
+         }
+     }
+
+     /**
+      * Writes the latency summary of a run to the requested files
+      * @param metrics the recorded latencies, null if not recorded
+      * @param jsonFile the JSON summary file, may be null
+      * @param promFile the Prometheus text file, may be null
+      */
+     static void writeMetrics (LatencyMetrics metrics, String jsonFile,
+             String promFile) {
+         if (metrics == null) {
+             return;
+         }
+         if (jsonFile != null) {
+             metrics.writeFile(jsonFile, false);
+         }
+         if (promFile != null) {
+             metrics.writeFile(promFile, true);
+         }
+     }
+
+     /**
+      * Resolves the eunType parameter: a type name or unique prefix, a comma
+      * separated list of them, or "all". A single unknown name selects
+      * Application.
+      * @param selector the eunType parameter
+      * @return type name to db retrieval uri part in eunTypes order, or null
+      *         if a name is ambiguous or unknown
+      */
+     static Map<String, String> selectEunTypes (String selector) {
+         Map<String, String> selected = new LinkedHashMap<String, String>();
+         if ("all".equals(selector.toLowerCase())) {
+             selected.putAll(eunTypes);
+             return selected;
+         }
+         String[] names = selector.split(",");
+         Set<String> matched = new HashSet<String>();
+         for (String name : names) {
+             String match = null;
+             for (String eun : eunTypes.keySet()) {
+                 if (eun.toLowerCase().startsWith(name.trim().toLowerCase())) {
+                     if (match == null) {
+                         match = eun;
+                     } else {
+                         System.out.println("Ambiguous eun type [" +name+ "]");
+                         return null;
+                     }
+                 }
+             }
+             if (match == null) {
+                 if (names.length > 1) {
+                     System.out.println("Unknown eun type [" +name+ "]");
+                     return null;
+                 }
+                 match = "Application";
+             }
+             matched.add(match);
+         }
+         for (String eun : eunTypes.keySet()) {
+             if (matched.contains(eun)) {
+                 selected.put(eun, eunTypes.get(eun));
+             }
+         }
+         return selected;
+     }
+
+     /**
+      * @param getPageSegment a db retrieval part of the uri
+      * @return the EUN type name of the segment, empty if there is none
+      */
+     static String eunTypeName (String getPageSegment) {
+         for (Map.Entry<String, String> eun : eunTypes.entrySet()) {
+             if (eun.getValue().equals(getPageSegment)) {
+                 return eun.getKey();
+             }
+         }
+         return "";
+     }
+
+     /**
+      * creates an EventCatcher with all values needed to update the EUN
+      * @param uri common part of the uri for all requests
+      * @param sensorUsername sensor username
+      * @param sensorPassword sensor password
+      * @param updateFile the detail text filename (optional)
+      * @param eunType the EUN page type
+      * @param verbose enable debug messages
+      */
+     public EunUpdate (String ipSegment, String getPageSegment, 
+             String sensorUsername, String sensorPassword, 
+             String updateFile, boolean verbose) {
+         this.uriIPSegment = ipSegment;
+         this.uriGetPageSegment = getPageSegment;
+         this.sensorUsername = new StringBuilder(sensorUsername);
+         this.sensorPassword = new StringBuilder(sensorPassword);
+         if (updateFile.length() > 0) {
+             this.updateFile = updateFile;
+         }
+         this.verbose = verbose;
+
+     }
+
+
+    /**
+     * Runs the login, retrieve and update sequence against the sensor
+     * @return true if every step succeeded, otherwise false. The last status
+     * line is kept in statusMessage.
+     */
+    boolean processUpdate() {
+        /**
+         * Read the new message first, a resumed run skips sensors the
+         * journal shows already have it
+         */
+        updated = false;
+        String newMessage = updateMessage;
+        String newMessageHash = null;
+        if (newMessage == null && updateFile != null) {
+            try {
+                byte[] encoded = Files.readAllBytes(Paths.get(updateFile));
+                newMessage = new String(encoded, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                return finish(false, "Unable to read " + updateFile);
+            }
+        }
+        if (newMessage != null) {
+            if (newMessage.length() == 0) {
+                return finish(false, updateMessage != null ?
+                        "Update message was empty" : "Update file was empty");
+            }
+            newMessageHash = RecordCache.hash(newMessage);
+        }
+        // the journal tracks the message and the image together
+        String contentHash = newMessageHash;
+        String newImageHash = null;
+        if (imageFile != null) {
+            try {
+                newImageHash = imageFile.hash();
+            } catch (IOException e) {
+                return finish(false, "Unable to read " + imageFile);
+            }
+            contentHash = RecordCache.hash((newMessageHash != null ?
+                    newMessageHash : "") + " " + newImageHash);
+        }
+        if (contentHash != null && journal != null && !verifyOnly
+                && journal.isDone(uriIPSegment, eunTypeName(uriGetPageSegment),
+                contentHash)) {
+            return finish(true, "Already updated, skipped by --resume");
+        }
+
+        /**
+         * Reuse a cached session, otherwise login to device
+         */
+        if (!openSession()) {
+            return finishUpdate(false, "Failed to authenticate", null, null,
+                    contentHash);
+        }
+
+        /**
+         * Retrieve the page, logging in again if the cached session expired
+         */
+        ResponseBuffer getPageResponse = new ResponseBuffer();
+        Outcome fetched = fetchRecord(uriGetPageSegment, getPageResponse);
+        lastFailure = fetched.failure;
+        if (renewExpiredSession(fetched)) {
+            getPageResponse = new ResponseBuffer();
+            fetched = fetchRecord(uriGetPageSegment, getPageResponse);
+            lastFailure = fetched.failure;
+        }
+        if (!fetched.ok) {
+            return finishUpdate(false, "Failed to retrieve EUN record", null,
+                    null, contentHash);
+        }
+        String recordHash = RecordCache.hash(getPageResponse.array(), 0,
+                getPageResponse.length());
+
+        /**
+         * Parse the response, only the small fields are decoded
+         */
+        EunRecord record;
+        String currentMessage;
+        long parseStart = System.nanoTime();
+        try {
+            record = EunRecord.parse(getPageResponse);
+            currentMessage = record.getString("message");
+        } catch (IOException e) {
+            recordPhase(LatencyMetrics.PARSE, uriGetPageSegment, parseStart, false);
+            return finishUpdate(false, e.getMessage(), recordHash, null,
+                    contentHash);
+        }
+        recordPhase(LatencyMetrics.PARSE, uriGetPageSegment, parseStart, true);
+        if (currentMessage != null) {
+            if (logProgress) {
+                if (SensorLog.isEnabled(SensorLog.Level.DEBUG)) {
+                    SensorLog.debug(uriIPSegment, eunTypeName(uriGetPageSegment),
+                            null, "Message found", SensorLog.body(currentMessage));
+                }
+            } else {
+                out.println("Message found: ");
+                out.println(currentMessage);
+            }
+        } else {
+            return finishUpdate(false, "Unable to find expected message",
+                    recordHash, null, contentHash);
+        }
+        String currentMessageHash = RecordCache.hash(currentMessage);
+        boolean known = recordCache != null
+                && recordCache.recordHash(uriIPSegment, uriGetPageSegment) != null;
+        boolean changed = checkRecordCache(uriGetPageSegment, recordHash,
+                currentMessageHash);
+
+        /**
+         * Check for the file update
+         */
+        if (newMessage == null && imageFile == null) {
+            if (verifyOnly) {
+                drift = changed;
+                if (!known) {
+                    return finish(true, "No earlier state of the record, state saved");
+                }
+                return finish(true, changed ? "Drift: record changed since the last run"
+                        : "Record unchanged since the last run");
+            }
+            return finish(true, "No message file specified");
+        }
+        if (newMessage != null) {
+            if (logProgress) {
+                if (SensorLog.isEnabled(SensorLog.Level.DEBUG)) {
+                    SensorLog.debug(uriIPSegment, eunTypeName(uriGetPageSegment),
+                            null, "New message", SensorLog.body(newMessage));
+                }
+            } else {
+                out.println("new message: "+newMessage);
+            }
+        }
+
+        /**
+         * Skip the update if the sensor already has the message and image
+         */
+        boolean messageCurrent = newMessage == null
+                || newMessageHash.equals(currentMessageHash);
+        boolean imageCurrent = imageFile == null
+                || newImageHash.equals(ImageFile.valueHash(record));
+        if (messageCurrent && imageCurrent) {
+            return finishUpdate(true, imageFile == null ? "Message already up to date"
+                    : "Record already up to date", recordHash, null, contentHash);
+        }
+        if (verifyOnly) {
+            drift = true;
+            return finish(true, !messageCurrent ? "Drift: message differs from "
+                    + (updateFile != null ? updateFile : "the new message")
+                    : "Drift: image differs from " + imageFile);
+        }
+
+        /**
+         * Update sensor with new eun message and image. Only the message is
+         * encoded in memory, a new image is streamed from its file and the
+         * rest of the record is sent straight from the fetched bytes.
+         */
+        Map<String, ByteBuffer> values = new HashMap<String, ByteBuffer>();
+        if (newMessage != null) {
+            values.put("message", ByteBuffer.wrap(JSONObject.quote(newMessage)
+                    .getBytes(StandardCharsets.UTF_8)));
+        }
+        if (!imageCurrent) {
+            values.put(ImageFile.FIELD, null);
+        }
+        List<ByteBuffer> updateBody;
+        String sentHash;
+        try {
+            updateBody = record.spliceFields(values);
+            sentHash = RecordCache.hash(updateBody, imageFile);
+        } catch (IOException e) {
+            return finishUpdate(false, e.getMessage(), recordHash, null,
+                    contentHash);
+        }
+        Outcome sent = updateRecord(uriGetPageSegment, updateBody);
+        if (renewExpiredSession(sent)) {
+            sent = updateRecord(uriGetPageSegment, updateBody);
+        }
+        boolean ok = sent.ok;
+        if (!ok && sent.maybeDelivered) {
+            /**
+             * The update may have been applied before it failed, so look at
+             * the record before sending it again
+             */
+            report(SensorLog.Level.INFO, uriGetPageSegment,
+                    "Update may have been applied, checking the record");
+            ResponseBuffer checkResponse = new ResponseBuffer();
+            if (fetchRecord(uriGetPageSegment, checkResponse).ok) {
+                boolean applied = false;
+                try {
+                    EunRecord check = EunRecord.parse(checkResponse);
+                    String checkMessage = check.getString("message");
+                    applied = (newMessage == null || (checkMessage != null
+                            && newMessageHash.equals(RecordCache.hash(checkMessage))))
+                            && (imageCurrent
+                            || newImageHash.equals(ImageFile.valueHash(check)));
+                } catch (IOException e) {
+                }
+                if (applied) {
+                    ok = true;
+                } else if (recordHash.equals(RecordCache.hash(
+                        checkResponse.array(), 0, checkResponse.length()))) {
+                    ok = updateRecord(uriGetPageSegment, updateBody).ok;
+                } else {
+                    return finishUpdate(false,
+                            "Record changed on the sensor during the update",
+                            recordHash, sentHash, contentHash);
+                }
+            }
+        }
+        if (!ok) {
+            return finishUpdate(false, "Failed to update EUN record", recordHash,
+                    sentHash, contentHash);
+        }
+        if (recordCache != null) {
+            recordCache.store(uriIPSegment, uriGetPageSegment, sentHash,
+                    newMessage != null ? newMessageHash : currentMessageHash);
+        }
+        return finishUpdate(true, imageFile == null ? "EUN message updated"
+                : newMessage == null ? "EUN image updated"
+                : "EUN message and image updated", recordHash, sentHash,
+                contentHash);
+    }
+
+    /**
+     * Logs in or reuses a cached session and retrieves the record of
+     * uriGetPageSegment
+     * @return the parsed record, or null if a step failed. The last status
+     * line is kept in statusMessage.
+     */
+    EunRecord processFetch () {
+        if (!openSession()) {
+            finish(false, "Failed to authenticate");
+            return null;
+        }
+        ResponseBuffer response = new ResponseBuffer();
+        Outcome fetched = fetchRecord(uriGetPageSegment, response);
+        lastFailure = fetched.failure;
+        if (renewExpiredSession(fetched)) {
+            response = new ResponseBuffer();
+            fetched = fetchRecord(uriGetPageSegment, response);
+            lastFailure = fetched.failure;
+        }
+        if (!fetched.ok) {
+            finish(false, "Failed to retrieve EUN record");
+            return null;
+        }
+        long parseStart = System.nanoTime();
+        try {
+            EunRecord record = EunRecord.parse(response);
+            recordPhase(LatencyMetrics.PARSE, uriGetPageSegment, parseStart, true);
+            finish(true, "EUN record retrieved");
+            return record;
+        } catch (IOException e) {
+            recordPhase(LatencyMetrics.PARSE, uriGetPageSegment, parseStart, false);
+            finish(false, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Logs in once and retrieves several EUN records in parallel over the
+     * same session. The records are printed as one JSON document.
+     * @param types EUN type name to db retrieval uri part, in output order
+     * @return true if every record was retrieved, otherwise false
+     */
+    boolean processFetchAll (Map<String, String> types) {
+        if (!openSession()) {
+            return finish(false, "Failed to authenticate");
+        }
+
+        List<String> names = new ArrayList<String>(types.keySet());
+        Map<String, ResponseBuffer> records = new HashMap<String, ResponseBuffer>();
+        Outcome expired = fetchRecords(types, names, records);
+        if (expired != null && renewExpiredSession(expired)) {
+            List<String> failed = new ArrayList<String>();
+            for (String name : names) {
+                if (records.get(name) == null) {
+                    failed.add(name);
+                }
+            }
+            fetchRecords(types, failed, records);
+        }
+
+        List<String> changed = new ArrayList<String>();
+        for (String name : names) {
+            ResponseBuffer record = records.get(name);
+            if (record == null) {
+                continue;
+            }
+            String messageHash = "";
+            long parseStart = System.nanoTime();
+            boolean parsed = false;
+            try {
+                String message = EunRecord.parse(record).getString("message");
+                if (message != null) {
+                    messageHash = RecordCache.hash(message);
+                }
+                parsed = true;
+            } catch (IOException e) {
+            }
+            recordPhase(LatencyMetrics.PARSE, types.get(name), parseStart, parsed);
+            if (checkRecordCache(types.get(name), RecordCache.hash(
+                    record.array(), 0, record.length()), messageHash)) {
+                changed.add(name);
+            }
+        }
+
+        if (snapshot != null) {
+            int saved = 0;
+            for (String name : names) {
+                ResponseBuffer record = records.get(name);
+                if (record == null) {
+                    continue;
+                }
+                try {
+                    snapshot.add(uriIPSegment, name, record);
+                    ++saved;
+                } catch (IOException e) {
+                    report(SensorLog.Level.WARN, types.get(name),
+                            "Unable to save " +name+ " to the snapshot [" +e.getMessage()+ "]");
+                }
+            }
+            return finish(saved == names.size(), "Saved " +saved+ " of " +
+                    names.size()+ " EUN records to the snapshot");
+        }
+
+        // the raw records are copied into the document as they are, so no
+        // record is parsed into objects or decoded to a String. Holding the
+        // System.out lock keeps the document in one piece in fleet runs.
+        int retrieved = 0;
+        PrintStream document = System.out;
+        synchronized (document) {
+            document.writeBytes(("{\"sensor\":" +JSONObject.quote(uriIPSegment)+
+                    ",\"records\":[").getBytes(StandardCharsets.UTF_8));
+            for (int n = 0; n < names.size(); n++) {
+                String name = names.get(n);
+                document.writeBytes(((n > 0 ? "," : "") + "{\"type\":" +
+                        JSONObject.quote(name)).getBytes(StandardCharsets.UTF_8));
+                ResponseBuffer record = records.get(name);
+                if (record != null) {
+                    document.writeBytes(",\"record\":".getBytes(StandardCharsets.UTF_8));
+                    document.write(record.array(), 0, record.length());
+                    ++retrieved;
+                } else {
+                    document.writeBytes(",\"error\":\"Failed to retrieve EUN record\""
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                document.write('}');
+            }
+            document.writeBytes("]}\n".getBytes(StandardCharsets.UTF_8));
+            document.flush();
+        }
+
+        String status = "Retrieved " +retrieved+ " of " +names.size()+
+                " EUN records";
+        if (verifyOnly) {
+            drift = !changed.isEmpty();
+            status += drift ? ", drift: " + String.join(",", changed)
+                    + " changed since the last run" : ", none changed since the last run";
+        }
+        return finish(retrieved == names.size(), status);
+    }
+
+    /**
+     * Logs in once and sends back the records of this sensor saved in a
+     * snapshot, image included, one type at a time
+     * @param snapshot the snapshot to restore from
+     * @param types EUN type name to db retrieval uri part
+     * @return true if every record of the sensor in the snapshot was sent
+     */
+    boolean processRestore (SnapshotArchive snapshot, Map<String, String> types) {
+        if (!openSession()) {
+            return finish(false, "Failed to authenticate");
+        }
+        int found = 0;
+        int restored = 0;
+        for (Map.Entry<String, String> type : types.entrySet()) {
+            List<ByteBuffer> body;
+            try {
+                body = snapshot.record(uriIPSegment, type.getKey());
+            } catch (IOException e) {
+                ++found;
+                report(SensorLog.Level.WARN, type.getValue(),
+                        "Unable to read " +type.getKey()+ " from the snapshot [" +e.getMessage()+ "]");
+                continue;
+            }
+            if (body == null) {
+                continue;
+            }
+            ++found;
+            Outcome sent = updateRecord(type.getValue(), body);
+            if (renewExpiredSession(sent)) {
+                sent = updateRecord(type.getValue(), body);
+            }
+            if (sent.ok) {
+                ++restored;
+            }
+        }
+        if (found == 0) {
+            return finish(false, "No records of this sensor in the snapshot");
+        }
+        return finish(restored == found, "Restored " +restored+ " of " +
+                found+ " EUN records");
+    }
+
+    /**
+     * Retrieves the named records on parallel virtual threads, each with
+     * its own response and outcome
+     * @param types EUN type name to db retrieval uri part
+     * @param names the types to retrieve
+     * @param records receives type name to record text, null for records
+     *        that failed
+     * @return the outcome of a fetch the sensor rejected the session of, or
+     *         null if none was
+     */
+    private Outcome fetchRecords (Map<String, String> types, List<String> names,
+            Map<String, ResponseBuffer> records) {
+        Map<String, Future<Outcome>> futures = new HashMap<String, Future<Outcome>>();
+        Map<String, ResponseBuffer> responses = new HashMap<String, ResponseBuffer>();
+        try (ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String name : names) {
+                ResponseBuffer response = new ResponseBuffer();
+                responses.put(name, response);
+                futures.put(name, executor.submit(
+                        () -> fetchRecord(types.get(name), response)));
+            }
+        }
+        Outcome expired = null;
+        for (String name : names) {
+            Outcome outcome;
+            try {
+                outcome = futures.get(name).get();
+            } catch (Exception e) {
+                outcome = new Outcome();
+            }
+            records.put(name, outcome.ok ? responses.get(name) : null);
+            if (outcome.sessionExpired) {
+                expired = outcome;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Reuses the cached session cookie for this sensor and user if there is
+     * one, otherwise logs in
+     * @return true if a session is available, otherwise false
+     */
+    private boolean openSession () {
+        String cachedCookie = null;
+        if (sessionCache != null) {
+            cachedCookie = sessionCache.lookup(uriIPSegment,
+                    sensorUsername.toString());
+        }
+        if (cachedCookie != null) {
+            sessionCookie = new StringBuilder(cachedCookie);
+            cachedSession = true;
+            return true;
+        }
+        cachedSession = false;
+        return login();
+    }
+
+    /**
+     * After a failed request, replaces a cached session the sensor rejected
+     * with a new login
+     * @param outcome the outcome of the request
+     * @return true if a new session was opened and the request should be
+     *         retried, otherwise false
+     */
+    private boolean renewExpiredSession (Outcome outcome) {
+        if (outcome.ok || !outcome.sessionExpired || !cachedSession) {
+            return false;
+        }
+        report(SensorLog.Level.INFO, uriGetPageSegment,
+                "Cached session expired, logging in again");
+        sessionCache.invalidate(uriIPSegment, sensorUsername.toString());
+        sessionCookie = new StringBuilder();
+        cachedSession = false;
+        return login();
+    }
+
+    /**
+     * Logs in to the sensor and caches the new session cookie
+     * @return true if successful, otherwise false
+     */
+    private boolean login () {
+        String loginMsg = "username="+sensorUsername+
+                "&password="+sensorPassword+"&next=\"\"";
+        ResponseBuffer authResponse = new ResponseBuffer();
+        Outcome outcome = processSensorRequest(LatencyMetrics.LOGIN,
+                uriIPSegment + LOGIN_SEGMENT, loginMsg, authResponse);
+        recordPhase(LatencyMetrics.LOGIN, uriGetPageSegment, outcome.start,
+                outcome.ok);
+        lastFailure = outcome.failure;
+        boolean ok = outcome.ok;
+        if (ok && sessionCache != null && sessionCookie.length() > 0) {
+            sessionCache.store(uriIPSegment, sensorUsername.toString(),
+                    sessionCookie.toString());
+        }
+        return ok;
+    }
+
+    /**
+     * Retrieves an EUN record over the current session. A login page in
+     * place of the JSON record means the session is no longer valid.
+     * Safe to call from several threads at once.
+     * @param getPageSegment the db retrieval part of the uri
+     * @param response will contain the raw record
+     * @return the outcome, sessionExpired is set if the sensor rejected the
+     *         session
+     */
+    private Outcome fetchRecord (String getPageSegment, ResponseBuffer response) {
+        Outcome outcome = processSensorRequest(LatencyMetrics.FETCH,
+                uriIPSegment + getPageSegment, "", response);
+        int first = response.firstContent();
+        if (outcome.ok && (first == response.length()
+                || response.array()[first] != '{')) {
+            report(SensorLog.Level.INFO, getPageSegment,
+                    "Sensor returned a page instead of the record");
+            outcome.failure = new SessionExpiredException(-1,
+                    "Sensor returned a page instead of the record");
+            outcome.sessionExpired = true;
+            outcome.ok = false;
+        }
+        recordPhase(LatencyMetrics.FETCH, getPageSegment, outcome.start,
+                outcome.ok);
+        return outcome;
+    }
+
+    /**
+     * Compares a fetched record with its last-known state and saves the new
+     * state
+     * @param getPageSegment the db retrieval part of the uri
+     * @param recordHash hash of the fetched record
+     * @param messageHash hash of the fetched message
+     * @return true if the record changed since it was last seen
+     */
+    private boolean checkRecordCache (String getPageSegment, String recordHash,
+            String messageHash) {
+        if (recordCache == null) {
+            return false;
+        }
+        String lastRecordHash = recordCache.recordHash(uriIPSegment, getPageSegment);
+        String lastMessageHash = recordCache.messageHash(uriIPSegment, getPageSegment);
+        boolean changed = lastRecordHash != null && !lastRecordHash.equals(recordHash);
+        if (changed) {
+            report(SensorLog.Level.INFO, getPageSegment, "Record " +getPageSegment+
+                    " changed since the last run" +
+                    (messageHash.equals(lastMessageHash) ? "" : ", message included"));
+        }
+        recordCache.store(uriIPSegment, getPageSegment, recordHash, messageHash);
+        return changed;
+    }
+
+    /**
+     * Sends an updated EUN record to the sensor
+     * @param getPageSegment the db retrieval part of the uri of the record
+     * @param body the record parts, sent without copying
+     * @return the outcome, sessionExpired is set if the sensor rejected the
+     *         session
+     */
+    private Outcome updateRecord (String getPageSegment, List<ByteBuffer> body) {
+        ResponseBuffer response = new ResponseBuffer();
+        Outcome outcome = processSensorRequest(LatencyMetrics.UPDATE,
+                uriIPSegment + UPDATE_EUN_SEGMENT, bodyPublisher(body),
+                JSON_CONTENT_TYPE, response, false);
+        recordPhase(LatencyMetrics.UPDATE, getPageSegment, outcome.start,
+                outcome.ok);
+        lastFailure = outcome.failure;
+        return outcome;
+    }
+
+    /**
+     * @param body the record parts, a null part is the image file
+     * @return a publisher of the parts, the image streamed from its file
+     */
+    private HttpRequest.BodyPublisher bodyPublisher (List<ByteBuffer> body) {
+        List<HttpRequest.BodyPublisher> publishers =
+                new ArrayList<HttpRequest.BodyPublisher>();
+        List<ByteBuffer> parts = new ArrayList<ByteBuffer>();
+        for (ByteBuffer part : body) {
+            if (part != null) {
+                parts.add(part);
+                continue;
+            }
+            publishers.add(new SplicePublisher(parts));
+            publishers.add(imageFile.publisher());
+            parts = new ArrayList<ByteBuffer>();
+        }
+        publishers.add(new SplicePublisher(parts));
+        return publishers.size() == 1 ? publishers.get(0)
+                : HttpRequest.BodyPublishers.concat(
+                publishers.toArray(new HttpRequest.BodyPublisher[0]));
+    }
+
+    /**
+     * Waits until the scheduler lets the next request of this sensor go
+     * @return System.nanoTime() at the start of the request
+     */
+    private long startRequest () {
+        return scheduler != null ? scheduler.acquire(uriIPSegment)
+                : System.nanoTime();
+    }
+
+    /**
+     * Reports a finished attempt of a request to the scheduler. A request
+     * that opened a connection is compared with the other requests that
+     * did, not with requests of its kind.
+     * @param kind the LatencyMetrics phase name of the request
+     * @param start the value startRequest returned for the attempt
+     * @param outcome the outcome of the attempt
+     */
+    private void endRequest (String kind, long start, Outcome outcome) {
+        if (scheduler != null) {
+            scheduler.release(outcome.newConnection ? LatencyMetrics.CONNECT : kind,
+                    start, outcome.failure);
+        }
+    }
+
+    /**
+     * Records the TCP and TLS handshakes with a sensor that ended since the
+     * last call as connect phases, if metrics are recorded
+     * @param sensorUrl the sensor protocol and IP part
+     * @param eunType the EUN type the connections are for, "" if none
+     * @param metrics null if metrics are not recorded
+     * @return the number of handshakes that ended
+     */
+    static int recordHandshakes (String sensorUrl, String eunType,
+            LatencyMetrics metrics) {
+        List<SensorTransport.Handshake> ended =
+                SensorTransport.takeHandshakes(URI.create(sensorUrl));
+        for (SensorTransport.Handshake handshake : ended) {
+            if (metrics != null) {
+                metrics.record(LatencyMetrics.CONNECT, sensorUrl, eunType,
+                        handshake.nanos, handshake.ok);
+            }
+        }
+        return ended.size();
+    }
+
+    /**
+     * Records the latency of a phase if metrics are recorded
+     * @param phase the LatencyMetrics phase name
+     * @param getPageSegment the db retrieval part of the uri of the record the
+     *        phase is for, null if it is not for one record
+     * @param start System.nanoTime() at the start of the phase
+     * @param ok false if the phase failed
+     */
+    private void recordPhase (String phase, String getPageSegment, long start,
+            boolean ok) {
+        if (metrics != null) {
+            metrics.record(phase, uriIPSegment, eunTypeName(getPageSegment),
+                    System.nanoTime() - start, ok);
+        }
+    }
+
+    /**
+     * @param requestUri a request uri of this sensor
+     * @return the LatencyMetrics phase name of the request, to tag log events
+     */
+    private static String phaseOf (String requestUri) {
+        if (requestUri.endsWith(LOGIN_SEGMENT)) {
+            return LatencyMetrics.LOGIN;
+        }
+        return requestUri.endsWith(UPDATE_EUN_SEGMENT) ? LatencyMetrics.UPDATE
+                : LatencyMetrics.FETCH;
+    }
+
+    /**
+     * @param requestUri a request uri of this sensor
+     * @return the EUN type name the request is for, to tag log events
+     */
+    private String typeOf (String requestUri) {
+        String segment = requestUri.startsWith(uriIPSegment)
+                ? requestUri.substring(uriIPSegment.length()) : requestUri;
+        String name = eunTypeName(segment);
+        return name.length() > 0 ? name : eunTypeName(uriGetPageSegment);
+    }
+
+    /**
+     * Journals the outcome of an update run and finishes it. Verify-only
+     * runs send nothing and are not journaled.
+     * @param ok the result to return
+     * @param msg the status text
+     * @param recordHash hash of the fetched record, null if not fetched
+     * @param sentHash hash of the record sent, null if nothing was sent
+     * @param messageHash hash of the new message, null if there is none
+     * @return ok
+     */
+    private boolean finishUpdate (boolean ok, String msg, String recordHash,
+            String sentHash, String messageHash) {
+        if (journal != null && messageHash != null && !verifyOnly) {
+            journal.append(uriIPSegment, eunTypeName(uriGetPageSegment),
+                    !ok ? RolloutJournal.FAILED : sentHash != null ?
+                    RolloutJournal.UPDATED : RolloutJournal.CURRENT,
+                    recordHash, sentHash, messageHash, msg);
+        }
+        updated = ok && sentHash != null;
+        return finish(ok, msg);
+    }
+
+    /**
+     * Prints a status line and keeps it as the outcome of this run
+     * @param ok the result to return
+     * @param msg the status text
+     * @return ok
+     */
+    private boolean finish (boolean ok, String msg) {
+        report(ok ? SensorLog.Level.INFO : SensorLog.Level.WARN,
+                uriGetPageSegment, msg);
+        statusMessage = msg;
+        return ok;
+    }
+
+    /**
+     * Prints a line, or logs it when logProgress is set
+     * @param level the level of the log event
+     * @param getPageSegment the record the line is about, null for the
+     *        sensor
+     * @param msg the line
+     */
+    private void report (SensorLog.Level level, String getPageSegment,
+            String msg) {
+        if (logProgress) {
+            SensorLog.log(level, uriIPSegment, getPageSegment != null
+                    ? eunTypeName(getPageSegment) : null, null, msg);
+        } else {
+            out.println(msg);
+        }
+    }
+
+    /**
+     * Process a sensor request and store the response
+     * @param kind the LatencyMetrics phase name of the request
+     * @param requestUri the uri to use for this request
+     * @param xmlMsg the POST content, empty for a GET request
+     * @param response will contain the raw response bytes
+     * @return the outcome of the request
+     */
+     private Outcome processSensorRequest (String kind, String requestUri,
+             String xmlMsg, ResponseBuffer response)
+     {
+         HttpRequest.BodyPublisher body = null;
+         if (xmlMsg != null && xmlMsg.length() > 0) {
+             body = HttpRequest.BodyPublishers.ofString(xmlMsg);
+         }
+         // logins and fetches change nothing on the sensor
+         return processSensorRequest(kind, requestUri, body, FORM_CONTENT_TYPE,
+                 response, true);
+     }
+
+    /**
+     * Process a sensor request and store the response. Failures the retry
+     * policy allows are sent again after a backoff. Each attempt takes its
+     * own scheduler slot, so a retry holds none while it backs off and the
+     * scheduler sees the latency of each attempt on its own.
+     * @param kind the LatencyMetrics phase name of the request
+     * @param requestUri the uri to use for this request
+     * @param body the POST content, null for a GET request
+     * @param contentType the content type of body
+     * @param response will contain the raw response bytes
+     * @param idempotent true if sending the request twice is harmless
+     * @return the outcome, maybeDelivered is set if the request failed but
+     *         the sensor may have received it
+     */
+     private Outcome processSensorRequest (String kind, String requestUri,
+             HttpRequest.BodyPublisher body, String contentType,
+             ResponseBuffer response, boolean idempotent)
+     {
+         Outcome outcome = new Outcome();
+         for (int attempt = 0; ; attempt++) {
+             long start = startRequest();
+             if (attempt == 0) {
+                 outcome.start = start;
+             }
+             outcome.newConnection = false;
+             // not an IOException, so not a failure the retry policy knows
+             boolean unexpected = false;
+             IOException failure = null;
+             try {
+                 sendSensorRequest(requestUri, body, contentType, response,
+                         outcome);
+             }
+             catch (IOException e) {
+                 failure = e;
+             }
+             catch (Exception e) {
+                 failure = new IOException(e.toString(), e);
+                 unexpected = true;
+             }
+             outcome.failure = failure;
+             endRequest(kind, start, outcome);
+             if (failure == null) {
+                 outcome.ok = true;
+                 return outcome;
+             }
+             if (failure instanceof SessionExpiredException) {
+                 outcome.sessionExpired = true;
+                 SensorLog.warn(uriIPSegment, typeOf(requestUri),
+                         phaseOf(requestUri), "Sensor session expired",
+                         "error", failure.toString());
+                 return outcome;
+             }
+             if (!unexpected && attempt < retryPolicy.retries
+                     && RetryPolicy.isRetryable(failure, idempotent)) {
+                 long delay = retryPolicy.backoffMillis(attempt);
+                 SensorLog.warn(uriIPSegment, typeOf(requestUri),
+                         phaseOf(requestUri), "Retrying", "attempt", attempt + 1,
+                         "delayMillis", delay, "error", failure.toString());
+                 response.clear();
+                 try {
+                     Thread.sleep(delay);
+                     continue;
+                 } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                 }
+             }
+             outcome.maybeDelivered = unexpected
+                     || !RetryPolicy.notDelivered(failure);
+             SensorLog.warn(uriIPSegment, typeOf(requestUri), phaseOf(requestUri),
+                     "Error when sending message to sensor", "error",
+                     unexpected ? failure.getMessage() : failure.toString());
+             return outcome;
+         }
+     }
+
+    /**
+     * Sends a sensor request once and stores the response
+     * @param requestUri the uri to use for this request
+     * @param body the POST content, null for a GET request
+     * @param contentType the content type of body
+     * @param response will contain the raw response bytes
+     * @param outcome newConnection is set if the request opened one
+     * @throws Exception if the request fails
+     */
+     private void sendSensorRequest (String requestUri,
+             HttpRequest.BodyPublisher body, String contentType,
+             ResponseBuffer response, Outcome outcome) throws Exception
+     {
+         // read the raw bytes, sized from Content-Length, and close the
+         // stream to hand the connection back to the pool
+         HttpResponse<InputStream> httpResponse =
+                 dispatchSensorMessage(requestUri, body, contentType, outcome);
+         // a compressed body is inflated on the way into the buffer, its
+         // Content-Length says nothing about the decoded size, so it isn't
+         // used to size the buffer
+         try (InputStream is = SensorTransport.decodedBody(httpResponse)) {
+             response.readFrom(is, SensorTransport.decodedLength(httpResponse));
+         }
+         if (SensorLog.isEnabled(SensorLog.Level.DEBUG)) {
+             SensorLog.debug(uriIPSegment, typeOf(requestUri),
+                     phaseOf(requestUri), "Response", SensorLog.body(response));
+         }
+     }
+
+    /**
+     * Dispatch a message to the sensor and opens a reader on the response
+     * @param uri the complete URI string
+     * @param body the POST content, null for a GET request
+     * @param contentType the content type of body
+     * @param outcome newConnection is set if the request opened one
+     * @return The response, its body stream not yet read
+     * @throws Exception
+     */
+     private HttpResponse<InputStream> dispatchSensorMessage (String uri,
+             HttpRequest.BodyPublisher body, String contentType, Outcome outcome)
+             throws Exception
+     {
+         HttpRequest.Builder builder = getRequestBuilder(uri, body, contentType);
+
+         if (sessionCookie.length() > 0) {
+             builder.header("Cookie", sessionCookie.toString());
+         }
+
+         // the TCP and TLS handshakes of new connections are timed as the
+         // connect phase, a connection that could not be opened by the time
+         // it took to fail
+         HttpRequest request = builder.build();
+         URI requestUri = request.uri();
+         long connections = SensorTransport.connections(requestUri);
+         long start = System.nanoTime();
+         HttpResponse<InputStream> httpResponse = null;
+         try {
+             httpResponse = SensorTransport.send(request);
+         } catch (ConnectException | HttpConnectTimeoutException e) {
+             recordPhase(LatencyMetrics.CONNECT, uriGetPageSegment, start, false);
+             throw e;
+         } finally {
+             outcome.newConnection =
+                     SensorTransport.connections(requestUri) > connections;
+             recordHandshakes(uriIPSegment, eunTypeName(uriGetPageSegment),
+                     metrics);
+         }
+
+         Optional<String> cookieHeader = httpResponse.headers().firstValue("Set-Cookie");
+         if(cookieHeader.isPresent())
+         {
+             int index = cookieHeader.get().indexOf(";");
+             if(index >= 0)
+             {
+                 sessionCookie = new StringBuilder(cookieHeader.get().substring(0, index));
+             }
+         }
+
+         if (SensorLog.isEnabled(SensorLog.Level.DEBUG)) {
+             List<Object> fields = new ArrayList<Object>();
+             fields.add("status");
+             fields.add(httpResponse.statusCode());
+             httpResponse.headers().map().forEach((key, values) -> {
+                 fields.add(key);
+                 fields.add(key.equalsIgnoreCase("Set-Cookie")
+                         ? SensorLog.redact(String.join(",", values))
+                         : String.join(",", values));
+             });
+             SensorLog.debug(uriIPSegment, typeOf(uri), phaseOf(uri),
+                     "Response headers", fields.toArray());
+         }
+
+         int status = httpResponse.statusCode();
+         if (status == 401 || status == 403 || (status >= 300 && status < 400
+                 && httpResponse.headers().firstValue("Location").orElse("")
+                 .contains("/authentication/login"))) {
+             httpResponse.body().close();
+             throw new SessionExpiredException(status, "HTTP response code: " +
+                     status+ " for URL: " + uri);
+         }
+         if (status >= 400) {
+             httpResponse.body().close();
+             throw new HttpStatusException(status, "Server returned HTTP response code: " +
+                     status+ " for URL: " + uri);
+         }
+
+         return httpResponse;
+
+     }
+
+    /**
+     * Builds a http header for a sensor request
+     * @param uri the complete URI string for this sensor request
+     * @param body optional, the POST content for this request
+     * @param contentType the content type of body
+     * @return an initialized request builder, POST if there is a body,
+     *         otherwise GET
+     */
+     HttpRequest.Builder getRequestBuilder (String uri,
+             HttpRequest.BodyPublisher body, String contentType)
+     {
+         // the uri and the default request header properties come from the
+         // template of this uri, built once
+         HttpRequest.Builder builder = RequestTemplates.request(uri, contentType);
+         if (body != null)
+             builder.POST(body);
+         else
+             builder.GET();
+
+         if (SensorLog.isEnabled(SensorLog.Level.DEBUG)) {
+             SensorLog.debug(uriIPSegment, typeOf(uri), phaseOf(uri), "Request",
+                     "method", body != null ? "POST" : "GET", "uri", uri,
+                     "Accept", "text/xml", "Accept-Charset", "iso-8859-1,*,utf-8",
+                     "Accept-Encoding", SensorTransport.compression()
+                     ? SensorTransport.ACCEPT_ENCODING : null,
+                     "User-Agent", USER_AGENT, "Pragma", "no-cache",
+                     "X-Requested-With", "XMLHttpRequest", "Content-Type", contentType,
+                     "Cookie", sessionCookie.length() > 0
+                     ? SensorLog.redact(sessionCookie) : null);
+         }
+
+         return builder;
+     }
+
+
+}
@@ -0,0 +1,352 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the EUN retrieve/update sequence against every sensor listed in an
+ * inventory file.
+ * Each sensor gets its own EunUpdate instance, and with it its own session
+ * cookie and request state, and runs on a virtual thread. A semaphore caps
+ * the number of sensors in flight so a large inventory does not open
+ * hundreds of sessions on the management plane at once.
+ */
+class FleetUpdate {
+    static final int DEFAULT_CONCURRENCY = 16;
+
+    // EUN type name to db retrieval part of the uri, same for every sensor
+    private final Map<String, String> selectedTypes;
+
+    // detail text file, may be empty
+    private final String updateFile;
+
+    // new message text sent to every sensor instead of reading updateFile,
+    // null to read the file
+    String updateMessage;
+
+    // replaces the image of the records, null to keep it
+    ImageFile imageFile;
+
+    private final boolean verbose;
+
+    // maximum number of sensors processed at the same time
+    private final int concurrency;
+
+    // connect to every sensor before the update phase starts
+    private final boolean prewarm;
+
+    // shared by all sensors, null if disabled
+    private final SessionCache sessionCache;
+
+    // last-known record hashes shared by all sensors, null if not tracked
+    RecordCache recordCache;
+
+    // fetch and compare only, never update
+    boolean verifyOnly = false;
+
+    // per-phase latencies shared by all sensors, null if not recorded
+    LatencyMetrics metrics;
+
+    // paces the requests of all sensors, null if not paced
+    RequestScheduler scheduler;
+
+    // outcome of each update, null if not journaled
+    RolloutJournal journal;
+
+    // how failed requests are sent again
+    RetryPolicy retryPolicy = new RetryPolicy(RetryPolicy.DEFAULT_RETRIES);
+
+    // the records are saved to this snapshot, null if not taking one
+    SnapshotArchive snapshot;
+
+    // the records are sent back from this snapshot, null if not restoring
+    SnapshotArchive restore;
+
+    // once set, sensors not started yet are left out of the run, set when
+    // another worker took over the shard being run
+    volatile boolean stopped = false;
+
+    /**
+     * One sensor line from the inventory file
+     */
+    static class SensorEntry {
+        final String sensorUrl;
+        final String user;
+        final String password;
+
+        SensorEntry (String sensorUrl, String user, String password) {
+            this.sensorUrl = sensorUrl;
+            this.user = user;
+            this.password = password;
+        }
+    }
+
+    /**
+     * The outcome of one sensor
+     */
+    static class SensorResult {
+        final String sensorUrl;
+        final boolean ok;
+        final boolean drift;
+        final String status;
+        final long elapsedMillis;
+
+        SensorResult (String sensorUrl, boolean ok, boolean drift,
+                String status, long elapsedMillis) {
+            this.sensorUrl = sensorUrl;
+            this.ok = ok;
+            this.drift = drift;
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    /**
+     * @param selectedTypes EUN type name to db retrieval part of the uri. With
+     *        more than one type, the records are only retrieved.
+     * @param updateFile the detail text filename, empty if only retrieving
+     * @param verbose enable debug messages
+     * @param concurrency maximum number of sensors in flight
+     * @param prewarm complete the handshakes before the update phase
+     * @param sessionCache cached session cookies, may be null
+     */
+    FleetUpdate (Map<String, String> selectedTypes, String updateFile, boolean verbose,
+            int concurrency, boolean prewarm, SessionCache sessionCache) {
+        this.selectedTypes = selectedTypes;
+        this.updateFile = updateFile;
+        this.verbose = verbose;
+        this.concurrency = concurrency;
+        this.prewarm = prewarm;
+        this.sessionCache = sessionCache;
+    }
+
+    /**
+     * Reads the inventory file.
+     * Each line is "sensorURL [user/passwd | @credName]". A line without
+     * credentials uses the default user and password, a @credName line looks
+     * the name up in the credential file and then in the environment.
+     * @param inventoryFile the inventory filename
+     * @param credentialFile properties file of credName=user/passwd, may be null
+     * @param defaultUser used for lines without credentials
+     * @param defaultPassword used for lines without credentials
+     * @return the sensors in file order
+     * @throws IOException if a file can't be read or a line is invalid
+     */
+    static List<SensorEntry> readInventory (String inventoryFile,
+            String credentialFile, String defaultUser, String defaultPassword)
+            throws IOException {
+        Properties credentials = new Properties();
+        if (credentialFile != null) {
+            try (Reader in = Files.newBufferedReader(Paths.get(credentialFile))) {
+                credentials.load(in);
+            }
+        }
+
+        List<SensorEntry> sensors = new ArrayList<SensorEntry>();
+        List<String> lines = Files.readAllLines(Paths.get(inventoryFile));
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n).trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length > 2) {
+                throw new IOException("too many fields on line " + (n+1));
+            }
+            String userPass;
+            if (fields.length == 1) {
+                userPass = defaultUser + "/" + defaultPassword;
+            } else if (fields[1].startsWith("@")) {
+                String credName = fields[1].substring(1);
+                userPass = credentials.getProperty(credName);
+                if (userPass == null) {
+                    userPass = System.getenv(credName);
+                }
+                if (userPass == null) {
+                    throw new IOException("unknown credential [" +credName+
+                            "] on line " + (n+1));
+                }
+            } else {
+                userPass = fields[1];
+            }
+            String[] sbuf = userPass.split("/");
+            if (sbuf.length == 0 || sbuf[0].length() == 0 || sbuf.length > 2) {
+                throw new IOException("invalid user/password on line " + (n+1));
+            }
+            sensors.add(new SensorEntry(fields[0], sbuf[0],
+                    sbuf.length > 1 ? sbuf[1] : ""));
+        }
+        return sensors;
+    }
+
+    /**
+     * Processes every sensor, at most concurrency at a time
+     * @param sensors the inventory
+     * @return one result per sensor run, in inventory order, all sensors
+     *         unless the run was stopped
+     */
+    List<SensorResult> run (List<SensorEntry> sensors) {
+        Semaphore permits = new Semaphore(concurrency);
+        if (prewarm) {
+            long start = System.nanoTime();
+            int warm = prewarmAll(sensors, permits);
+            System.out.println("Pre-warmed " +warm+ " of " +sensors.size()+
+                    " sensors in " + TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - start) + " ms");
+        }
+        List<Future<SensorResult>> futures =
+                new ArrayList<Future<SensorResult>>();
+        try (ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor()) {
+            for (SensorEntry sensor : sensors) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        if (stopped) {
+                            return null;
+                        }
+                        return processSensor(sensor);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
+
+        List<SensorResult> results = new ArrayList<SensorResult>();
+        for (int n = 0; n < futures.size(); n++) {
+            try {
+                SensorResult result = futures.get(n).get();
+                if (result != null) {
+                    results.add(result);
+                }
+            } catch (Exception e) {
+                results.add(new SensorResult(sensors.get(n).sensorUrl, false,
+                        false, "Error [" +e.getMessage()+ "]", 0));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Connects to every sensor so the TCP and TLS handshakes are done and
+     * pooled before any login starts
+     * @param sensors the inventory
+     * @param permits limits the number of handshakes in flight
+     * @return the number of sensors that answered
+     */
+    int prewarmAll (List<SensorEntry> sensors, Semaphore permits) {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        try (ExecutorService executor =
+                Executors.newVirtualThreadPerTaskExecutor()) {
+            for (SensorEntry sensor : sensors) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return prewarm(sensor.sensorUrl);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
+        int warm = 0;
+        for (Future<Boolean> future : futures) {
+            try {
+                if (future.get()) {
+                    ++warm;
+                }
+            } catch (Exception e) {
+            }
+        }
+        return warm;
+    }
+
+    /**
+     * Connects to one sensor, its handshake timed as its connect phase. A
+     * connection that could not be opened counts as a failed connect that
+     * took until the pre-warm gave up.
+     * @param sensorUrl the sensor protocol and IP part
+     * @return true if the sensor answered, otherwise false
+     */
+    private boolean prewarm (String sensorUrl) {
+        long start = System.nanoTime();
+        boolean ok = SensorTransport.prewarm(sensorUrl);
+        String eunType = selectedTypes.size() == 1 ?
+                selectedTypes.keySet().iterator().next() : "";
+        if (EunUpdate.recordHandshakes(sensorUrl, eunType, metrics) == 0
+                && !ok && metrics != null) {
+            metrics.record(LatencyMetrics.CONNECT, sensorUrl, eunType,
+                    System.nanoTime() - start, false);
+        }
+        return ok;
+    }
+
+    /**
+     * Runs the update for one sensor with its own session state
+     * @param sensor the sensor to process
+     * @return the sensor outcome
+     */
+    private SensorResult processSensor (SensorEntry sensor) {
+        long start = System.nanoTime();
+        String uriGetPageSegment = selectedTypes.size() == 1 ?
+                selectedTypes.values().iterator().next() : null;
+        EunUpdate eunUpdate = new EunUpdate(sensor.sensorUrl,
+                uriGetPageSegment, sensor.user, sensor.password, updateFile,
+                verbose);
+        eunUpdate.logProgress = true;
+        eunUpdate.sessionCache = sessionCache;
+        eunUpdate.recordCache = recordCache;
+        eunUpdate.verifyOnly = verifyOnly;
+        eunUpdate.metrics = metrics;
+        eunUpdate.scheduler = scheduler;
+        eunUpdate.journal = journal;
+        eunUpdate.retryPolicy = retryPolicy;
+        eunUpdate.snapshot = snapshot;
+        eunUpdate.imageFile = imageFile;
+        eunUpdate.updateMessage = updateMessage;
+        boolean ok;
+        try {
+            if (restore != null) {
+                ok = eunUpdate.processRestore(restore, selectedTypes);
+            } else if (uriGetPageSegment != null && snapshot == null) {
+                ok = eunUpdate.processUpdate();
+            } else {
+                ok = eunUpdate.processFetchAll(selectedTypes);
+            }
+        } catch (RuntimeException e) {
+            ok = false;
+            eunUpdate.statusMessage = "Error [" +e.getMessage()+ "]";
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return new SensorResult(sensor.sensorUrl, ok, eunUpdate.drift,
+                eunUpdate.statusMessage, elapsed);
+    }
+
+    /**
+     * Prints one line per sensor followed by the totals
+     * @param results the fleet results
+     */
+    static void printSummary (List<SensorResult> results) {
+        int failed = 0;
+        int drifted = 0;
+        System.out.println("\nFleet summary");
+        for (SensorResult result : results) {
+            if (!result.ok) {
+                ++failed;
+            } else if (result.drift) {
+                ++drifted;
+            }
+            System.out.println("   " + (!result.ok ? "FAILED"
+                    : result.drift ? "DRIFT " : "OK    ") +
+                    " [" +result.sensorUrl+ "] " + result.status +
+                    " (" +result.elapsedMillis+ " ms)");
+        }
+        System.out.println(results.size() + " sensors, " +
+                (results.size() - failed) + " succeeded, " + failed + " failed" +
+                (drifted > 0 ? ", " + drifted + " drifted" : ""));
+    }
+}
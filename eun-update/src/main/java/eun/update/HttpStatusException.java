@@ -0,0 +1,19 @@
+package eun.update;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the sensor answers a request with an error status, so the
+ * caller can tell a refused request from one that may have been applied
+ */
+class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    // the HTTP status code
+    final int status;
+
+    HttpStatusException (int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
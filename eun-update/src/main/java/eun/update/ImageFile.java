@@ -0,0 +1,170 @@
+package eun.update;
+
+import java.io.*;
+import java.net.http.HttpRequest;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * An image file sent as the image field of EUN records.
+ * The file is base64 encoded a chunk at a time as the request body is
+ * sent, so neither the file nor its encoding is ever held whole, and heap
+ * use does not grow with the image size however many sensors are updated.
+ */
+class ImageFile {
+    // the record field holding the base64 image
+    static final String FIELD = "image";
+
+    // a multiple of 3, so every chunk but the last encodes without padding
+    private static final int CHUNK = 48 * 1024;
+
+    private final Path file;
+
+    private final long size;
+
+    // hash of the encoded field value, computed once for all sensors
+    private String hash;
+
+    /**
+     * @param file the image file, read again for each request
+     * @throws IOException if the file can't be read or is empty
+     */
+    ImageFile (Path file) throws IOException {
+        this.file = file;
+        this.size = Files.size(file);
+        if (size == 0) {
+            throw new IOException("Image file was empty");
+        }
+    }
+
+    /**
+     * @return the length of the field value, quotes included
+     */
+    long encodedLength () {
+        return 2 + 4 * ((size + 2) / 3);
+    }
+
+    /**
+     * @return a stream of the field value, the base64 image in quotes
+     * @throws IOException if the file can't be opened
+     */
+    InputStream open () throws IOException {
+        return new EncodingStream(Files.newInputStream(file));
+    }
+
+    /**
+     * @return a body publisher of the field value, the file is opened again
+     *         for each subscription so a retry sends it again
+     */
+    HttpRequest.BodyPublisher publisher () {
+        return HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(() -> {
+                    try {
+                        return open();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }), encodedLength());
+    }
+
+    /**
+     * @return hex SHA-256 of the field value, comparable with valueHash
+     * @throws IOException if the file can't be read
+     */
+    synchronized String hash () throws IOException {
+        if (hash == null) {
+            hash = RecordCache.hash(Collections.singletonList(null), this);
+        }
+        return hash;
+    }
+
+    /**
+     * @param record a fetched record
+     * @return hex SHA-256 of its raw image value, or null if it has none
+     */
+    static String valueHash (EunRecord record) {
+        int[] span = record.valueSpan(FIELD);
+        return span == null ? null
+                : RecordCache.hash(record.array(), span[0], span[1] - span[0]);
+    }
+
+    @Override
+    public String toString () {
+        return file.toString();
+    }
+
+    /**
+     * Reads the file a chunk at a time and hands out its encoding, between
+     * an opening and a closing quote
+     */
+    private static class EncodingStream extends InputStream {
+        private final InputStream in;
+
+        private final byte[] raw = new byte[CHUNK];
+
+        private final byte[] encoded = new byte[CHUNK / 3 * 4];
+
+        private int pos = 0;
+        private int limit = 0;
+        private boolean opened = false;
+        private boolean closed = false;
+
+        EncodingStream (InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read () throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return encoded[pos++] & 0xff;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(encoded, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close () throws IOException {
+            in.close();
+        }
+
+        private boolean fill () throws IOException {
+            pos = 0;
+            if (!opened) {
+                opened = true;
+                encoded[0] = '"';
+                limit = 1;
+                return true;
+            }
+            int n = in.readNBytes(raw, 0, CHUNK);
+            if (n == CHUNK) {
+                limit = Base64.getEncoder().encode(raw, encoded);
+                return true;
+            }
+            if (n > 0) {
+                limit = Base64.getEncoder().encode(Arrays.copyOf(raw, n), encoded);
+                return true;
+            }
+            if (!closed) {
+                closed = true;
+                encoded[0] = '"';
+                limit = 1;
+                return true;
+            }
+            limit = 0;
+            return false;
+        }
+    }
+}
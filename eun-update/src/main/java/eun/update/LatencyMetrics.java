@@ -0,0 +1,332 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Latency histograms of the phases of an EUN update, one per phase, sensor
+ * and EUN type, shared by all sensors of a run.
+ * The phases are the TCP and TLS handshakes of new connections, timed by
+ * the SSLEngine of each connection and apart from the request that opened
+ * it, and the login, fetch, parse and update steps. A summary with
+ * p50/p99/max and error counts is written in JSON or in the Prometheus text
+ * format, per sensor and combined over all sensors.
+ */
+class LatencyMetrics {
+    static final String CONNECT = "connect";
+    static final String LOGIN = "login";
+    static final String FETCH = "fetch";
+    static final String PARSE = "parse";
+    static final String UPDATE = "update";
+
+    // summary order
+    private static final List<String> PHASES =
+            Arrays.asList(CONNECT, LOGIN, FETCH, PARSE, UPDATE);
+
+    // a fleet run records from many virtual threads at once
+    private final Map<Series, Histogram> series =
+            new ConcurrentHashMap<Series, Histogram>();
+
+    /**
+     * The labels of one histogram
+     */
+    static class Series implements Comparable<Series> {
+        final String phase;
+        final String sensor;
+        final String eunType;
+
+        Series (String phase, String sensor, String eunType) {
+            this.phase = phase;
+            this.sensor = sensor;
+            this.eunType = eunType;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof Series)) {
+                return false;
+            }
+            Series other = (Series) o;
+            return phase.equals(other.phase) && sensor.equals(other.sensor)
+                    && eunType.equals(other.eunType);
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(phase, sensor, eunType);
+        }
+
+        @Override
+        public int compareTo (Series other) {
+            int c = PHASES.indexOf(phase) - PHASES.indexOf(other.phase);
+            if (c == 0) {
+                c = sensor.compareTo(other.sensor);
+            }
+            if (c == 0) {
+                c = eunType.compareTo(other.eunType);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Log-linear histogram of nanosecond latencies, 8 buckets per power of
+     * two, so a percentile is within 12.5% of the recorded value
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long count;
+        private long errors;
+        private long sumNanos;
+        private long maxNanos;
+
+        /**
+         * @param nanos the latency
+         * @param ok false if the phase failed
+         */
+        synchronized void record (long nanos, boolean ok) {
+            nanos = Math.max(nanos, 0);
+            ++counts[bucket(nanos)];
+            ++count;
+            if (!ok) {
+                ++errors;
+            }
+            sumNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * Adds the values of another histogram to this one
+         * @param other the histogram to add
+         */
+        synchronized void add (Histogram other) {
+            synchronized (other) {
+                for (int n = 0; n < counts.length; n++) {
+                    counts[n] += other.counts[n];
+                }
+                count += other.count;
+                errors += other.errors;
+                sumNanos += other.sumNanos;
+                maxNanos = Math.max(maxNanos, other.maxNanos);
+            }
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the upper bound of the bucket holding the quantile, at most
+         *         the largest recorded value, 0 if there are no values
+         */
+        synchronized long percentile (double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int n = 0; n < counts.length; n++) {
+                seen += counts[n];
+                if (seen >= rank) {
+                    return Math.min(highestValue(n), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+
+        synchronized long count () {
+            return count;
+        }
+
+        synchronized long errors () {
+            return errors;
+        }
+
+        synchronized long sumNanos () {
+            return sumNanos;
+        }
+
+        synchronized long maxNanos () {
+            return maxNanos;
+        }
+
+        private static int bucket (long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int shift = exponent - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS
+                    + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        private static long highestValue (int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    /**
+     * Records the latency of one phase
+     * @param phase one of the phase names
+     * @param sensor the sensor protocol and IP part
+     * @param eunType the EUN type name, empty if the phase is not for one type
+     * @param nanos the latency
+     * @param ok false if the phase failed
+     */
+    void record (String phase, String sensor, String eunType, long nanos,
+            boolean ok) {
+        series.computeIfAbsent(new Series(phase, sensor, eunType),
+                k -> new Histogram()).record(nanos, ok);
+    }
+
+    /**
+     * @return the histograms per phase, sensor and EUN type, in summary order
+     */
+    SortedMap<Series, Histogram> bySensor () {
+        return new TreeMap<Series, Histogram>(series);
+    }
+
+    /**
+     * @return the histograms per phase and EUN type, over all sensors
+     */
+    SortedMap<Series, Histogram> byPhase () {
+        SortedMap<Series, Histogram> phases = new TreeMap<Series, Histogram>();
+        for (Map.Entry<Series, Histogram> entry : series.entrySet()) {
+            Series key = new Series(entry.getKey().phase, "",
+                    entry.getKey().eunType);
+            phases.computeIfAbsent(key, k -> new Histogram())
+                    .add(entry.getValue());
+        }
+        return phases;
+    }
+
+    /**
+     * Writes the summary as a JSON document with a "phases" array over all
+     * sensors and a "sensors" array per sensor, latencies in milliseconds
+     * @param out the destination
+     * @throws IOException if writing fails
+     */
+    void writeJson (Writer out) throws IOException {
+        JSONObject summary = new JSONObject();
+        summary.put("phases", toJson(byPhase(), false));
+        summary.put("sensors", toJson(bySensor(), true));
+        out.write(summary.toString(2));
+        out.write('\n');
+    }
+
+    private static JSONArray toJson (SortedMap<Series, Histogram> histograms,
+            boolean withSensor) {
+        JSONArray array = new JSONArray();
+        for (Map.Entry<Series, Histogram> entry : histograms.entrySet()) {
+            Series key = entry.getKey();
+            Histogram histogram = entry.getValue();
+            JSONObject item = new JSONObject();
+            item.put("phase", key.phase);
+            if (withSensor) {
+                item.put("sensor", key.sensor);
+            }
+            item.put("eun_type", key.eunType);
+            item.put("count", histogram.count());
+            item.put("errors", histogram.errors());
+            item.put("p50_ms", millis(histogram.percentile(0.5)));
+            item.put("p99_ms", millis(histogram.percentile(0.99)));
+            item.put("max_ms", millis(histogram.maxNanos()));
+            array.put(item);
+        }
+        return array;
+    }
+
+    /**
+     * Writes the summary in the Prometheus text format. The
+     * eunupdate_phase_* families are over all sensors, the
+     * eunupdate_sensor_phase_* families are per sensor. Latencies are in
+     * seconds.
+     * @param out the destination
+     * @throws IOException if writing fails
+     */
+    void writePrometheus (Writer out) throws IOException {
+        writePrometheus(out, "eunupdate_phase", "", byPhase(), false);
+        writePrometheus(out, "eunupdate_sensor_phase", " per sensor",
+                bySensor(), true);
+    }
+
+    private static void writePrometheus (Writer out, String family,
+            String scope, SortedMap<Series, Histogram> histograms,
+            boolean withSensor) throws IOException {
+        out.write("# HELP " +family+ "_seconds EUN update phase latency" +scope+ "\n");
+        out.write("# TYPE " +family+ "_seconds summary\n");
+        for (Map.Entry<Series, Histogram> entry : histograms.entrySet()) {
+            String labels = labels(entry.getKey(), withSensor);
+            Histogram histogram = entry.getValue();
+            out.write(family+ "_seconds{" +labels+ ",quantile=\"0.5\"} " +
+                    seconds(histogram.percentile(0.5)) + "\n");
+            out.write(family+ "_seconds{" +labels+ ",quantile=\"0.99\"} " +
+                    seconds(histogram.percentile(0.99)) + "\n");
+            out.write(family+ "_seconds_sum{" +labels+ "} " +
+                    seconds(histogram.sumNanos()) + "\n");
+            out.write(family+ "_seconds_count{" +labels+ "} " +
+                    histogram.count() + "\n");
+        }
+        out.write("# HELP " +family+ "_max_seconds EUN update phase maximum latency" +scope+ "\n");
+        out.write("# TYPE " +family+ "_max_seconds gauge\n");
+        for (Map.Entry<Series, Histogram> entry : histograms.entrySet()) {
+            out.write(family+ "_max_seconds{" +labels(entry.getKey(), withSensor)+
+                    "} " + seconds(entry.getValue().maxNanos()) + "\n");
+        }
+        out.write("# HELP " +family+ "_errors_total EUN update phase failures" +scope+ "\n");
+        out.write("# TYPE " +family+ "_errors_total counter\n");
+        for (Map.Entry<Series, Histogram> entry : histograms.entrySet()) {
+            out.write(family+ "_errors_total{" +labels(entry.getKey(), withSensor)+
+                    "} " + entry.getValue().errors() + "\n");
+        }
+    }
+
+    private static String labels (Series key, boolean withSensor) {
+        return "phase=\"" +escape(key.phase)+ "\"" +
+                (withSensor ? ",sensor=\"" +escape(key.sensor)+ "\"" : "") +
+                ",eun_type=\"" +escape(key.eunType)+ "\"";
+    }
+
+    private static String escape (String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    private static double millis (long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static double seconds (long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * Writes the summary to a file, reporting failures on the console
+     * @param file the file name
+     * @param prometheus true for the Prometheus text format, otherwise JSON
+     * @return true if the file was written
+     */
+    boolean writeFile (String file, boolean prometheus) {
+        try (Writer out = Files.newBufferedWriter(Paths.get(file),
+                StandardCharsets.UTF_8)) {
+            if (prometheus) {
+                writePrometheus(out);
+            } else {
+                writeJson(out);
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to write metrics to " +file+
+                    " [" +e.getMessage()+ "]");
+            return false;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.*;
+import java.util.*;
+
+/**
+ * On-disk cache of the last-known state of each EUN record, keyed by sensor
+ * and EUN type.
+ * Only SHA-256 hashes of the whole record and of its message are kept, so
+ * the cache stays small however large the image is. The record hash shows
+ * whether a record changed on the sensor since the last run, the message
+ * hash is compared with the desired message to skip updates that would
+ * change nothing.
+ */
+class RecordCache {
+    private final Path cacheFile;
+
+    // key "sensorURL getPageSegment", value "storedMillis recordHash messageHash"
+    private Properties entries = new Properties();
+
+    // entries stored since the file was last written
+    private final Map<String, String> changes = new HashMap<String, String>();
+
+    private long lastFlush = System.currentTimeMillis();
+
+    /**
+     * @param cacheFile the cache file, created on the first store
+     */
+    RecordCache (Path cacheFile) {
+        this.cacheFile = cacheFile;
+        CacheFiles.load(cacheFile, entries);
+    }
+
+    /**
+     * @return the cache file in the user's home directory
+     */
+    static Path defaultFile () {
+        return CacheFiles.defaultFile("records.properties");
+    }
+
+    /**
+     * @param sensorUrl the sensor protocol and IP part
+     * @param getPageSegment the db retrieval part of the uri
+     * @return the last-known record hash, or null if the record is unknown
+     */
+    synchronized String recordHash (String sensorUrl, String getPageSegment) {
+        String[] value = lookup(sensorUrl, getPageSegment);
+        return value == null ? null : value[1];
+    }
+
+    /**
+     * @param sensorUrl the sensor protocol and IP part
+     * @param getPageSegment the db retrieval part of the uri
+     * @return the last-known message hash, or null if the record is unknown
+     */
+    synchronized String messageHash (String sensorUrl, String getPageSegment) {
+        String[] value = lookup(sensorUrl, getPageSegment);
+        return value == null ? null : value[2];
+    }
+
+    /**
+     * Saves the state of a record as just fetched from or sent to the
+     * sensor. The file is written in batches, see flush.
+     * @param sensorUrl the sensor protocol and IP part
+     * @param getPageSegment the db retrieval part of the uri
+     * @param recordHash hash of the whole record
+     * @param messageHash hash of the message
+     */
+    synchronized void store (String sensorUrl, String getPageSegment,
+            String recordHash, String messageHash) {
+        String key = key(sensorUrl, getPageSegment);
+        String value = System.currentTimeMillis() + " " + recordHash + " " + messageHash;
+        entries.setProperty(key, value);
+        changes.put(key, value);
+        if (CacheFiles.isDue(changes.size(), entries.size(), lastFlush)) {
+            flush();
+        }
+    }
+
+    /**
+     * Merges the stored entries into the file, keeping the entries other
+     * runs wrote since it was read. Called when enough entries changed and
+     * at the end of the run.
+     */
+    synchronized void flush () {
+        if (changes.isEmpty()) {
+            return;
+        }
+        try {
+            entries = CacheFiles.merge(cacheFile, changes, null,
+                    "EunUpdate record cache");
+        } catch (IOException e) {
+            System.out.println("Unable to save record cache [" +e.getMessage()+ "]");
+        }
+        changes.clear();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private String[] lookup (String sensorUrl, String getPageSegment) {
+        String value = entries.getProperty(key(sensorUrl, getPageSegment));
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split(" ");
+        return fields.length == 3 ? fields : null;
+    }
+
+    private static String key (String sensorUrl, String getPageSegment) {
+        return sensorUrl + " " + getPageSegment;
+    }
+
+    /**
+     * @param message the message text
+     * @return hex SHA-256 of the UTF-8 message
+     */
+    static String hash (String message) {
+        MessageDigest md = sha256();
+        md.update(message.getBytes(StandardCharsets.UTF_8));
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param data the bytes to hash
+     * @param offset the first byte
+     * @param length the number of bytes
+     * @return hex SHA-256 of the bytes
+     */
+    static String hash (byte[] data, int offset, int length) {
+        MessageDigest md = sha256();
+        md.update(data, offset, length);
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param parts the bytes to hash, in order, their positions are unchanged
+     * @return hex SHA-256 of the parts as one
+     */
+    static String hash (List<ByteBuffer> parts) {
+        MessageDigest md = sha256();
+        for (ByteBuffer part : parts) {
+            md.update(part.duplicate());
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * @param parts the bytes to hash, in order, a null part stands for the
+     *        encoded image
+     * @param image streamed in place of the null parts, may be null
+     * @return hex SHA-256 of the parts as one
+     * @throws IOException if the image can't be read
+     */
+    static String hash (List<ByteBuffer> parts, ImageFile image)
+            throws IOException {
+        MessageDigest md = sha256();
+        byte[] buffer = new byte[8192];
+        for (ByteBuffer part : parts) {
+            if (part != null) {
+                md.update(part.duplicate());
+                continue;
+            }
+            try (InputStream in = image.open()) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    md.update(buffer, 0, n);
+                }
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    static MessageDigest sha256 () {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex (byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,283 @@
+package eun.update;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Paces the login, fetch and update requests of a run so sensors and the
+ * management plane are not overloaded.
+ * The number of requests in flight is set by AIMD: it starts low, doubles
+ * each round trip until the first sign of overload, then grows by one per
+ * round trip and is halved when a request fails from overload or the
+ * average latency of a kind of request stays well above the median of its
+ * recent latencies for several requests in a row. A sensor that is down or
+ * refuses a request is left to its CircuitBreaker, so it does not slow the
+ * rest of the fleet. Requests also take a
+ * token from a bucket of their sensor and from a global bucket, if rates are
+ * set.
+ * Waits use a lock and timed sleeps so virtual threads are not pinned.
+ */
+class RequestScheduler {
+    static final int DEFAULT_INITIAL_LIMIT = 4;
+
+    // a smoothed latency above this many times the baseline of its kind
+    // signals overload
+    static final double LATENCY_TOLERANCE = 2.0;
+
+    // weight of a new latency in the smoothed latency
+    static final double SMOOTHING = 0.2;
+
+    // the baseline of a kind is the median of this many recent latencies
+    static final int BASELINE_WINDOW = 64;
+
+    // latencies of a kind needed before its baseline is trusted
+    static final int BASELINE_MIN_SAMPLES = 16;
+
+    // slow requests of a kind in a row that signal overload
+    static final int SLOW_SAMPLES = 8;
+
+    static final double DECREASE_FACTOR = 0.5;
+
+    // upper bound of the requests in flight
+    private final int maxLimit;
+
+    // requests per second for each sensor, 0 if unlimited
+    private final double sensorRate;
+
+    // null if unlimited
+    private final TokenBucket globalBucket;
+
+    private final Map<String, TokenBucket> sensorBuckets =
+            new ConcurrentHashMap<String, TokenBucket>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition slotFree = lock.newCondition();
+
+    // guarded by lock
+    private double limit;
+    private int inFlight = 0;
+    private boolean slowStart = true;
+    private long lastDecrease = Long.MIN_VALUE;
+    private int decreases = 0;
+    private int lowestLimit;
+    private int highestLimit;
+
+    // request kind to its recent latencies, guarded by lock
+    private final Map<String, LatencyWindow> baselines =
+            new HashMap<String, LatencyWindow>();
+
+    // request kind to the moving average of its latencies, guarded by lock
+    private final Map<String, Double> smoothed = new HashMap<String, Double>();
+
+    // request kind to the number of slow requests in a row, guarded by lock
+    private final Map<String, Integer> slowRuns = new HashMap<String, Integer>();
+
+    /**
+     * The last BASELINE_WINDOW latencies of a kind of request. Their median
+     * moves with the usual latency but not with single outliers, unlike the
+     * fastest recent request.
+     */
+    static class LatencyWindow {
+        private final long[] latencies = new long[BASELINE_WINDOW];
+        private int count = 0;
+        private int next = 0;
+
+        void add (long latency) {
+            latencies[next] = latency;
+            next = (next + 1) % latencies.length;
+            count = Math.min(count + 1, latencies.length);
+        }
+
+        /**
+         * @return the median latency, or -1 if there are too few latencies
+         */
+        long median () {
+            if (count < BASELINE_MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[count / 2];
+        }
+    }
+
+    /**
+     * A token bucket that hands out reservations, so a caller sleeps
+     * outside the lock until its token is due
+     */
+    static class TokenBucket {
+        private final double tokensPerNano;
+        private final double burst;
+        private double tokens;
+        private long refilled;
+
+        /**
+         * @param perSecond the sustained rate, also the burst size
+         */
+        TokenBucket (double perSecond) {
+            this.tokensPerNano = perSecond / 1e9;
+            this.burst = Math.max(1, perSecond);
+            this.tokens = burst;
+            this.refilled = System.nanoTime();
+        }
+
+        /**
+         * Takes a token
+         * @return how long to wait until the token is due, in nanoseconds
+         */
+        synchronized long reserve () {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+            refilled = now;
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+    }
+
+    /**
+     * @param maxLimit upper bound of the requests in flight
+     * @param globalRate requests per second over all sensors, 0 if unlimited
+     * @param sensorRate requests per second for each sensor, 0 if unlimited
+     */
+    RequestScheduler (int maxLimit, double globalRate, double sensorRate) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.sensorRate = sensorRate;
+        this.globalBucket = globalRate > 0 ? new TokenBucket(globalRate) : null;
+        this.limit = Math.min(DEFAULT_INITIAL_LIMIT, this.maxLimit);
+        this.lowestLimit = (int) limit;
+        this.highestLimit = (int) limit;
+    }
+
+    /**
+     * Waits for the tokens and a free slot. If the thread is interrupted
+     * the request goes ahead without waiting further.
+     * @param sensor the sensor protocol and IP part
+     * @return System.nanoTime() at the start of the request, to hand to
+     *         release
+     */
+    long acquire (String sensor) {
+        try {
+            if (sensorRate > 0) {
+                sleep(sensorBuckets.computeIfAbsent(sensor,
+                        k -> new TokenBucket(sensorRate)).reserve());
+            }
+            if (globalBucket != null) {
+                sleep(globalBucket.reserve());
+            }
+            lock.lockInterruptibly();
+            try {
+                while (inFlight >= (int) limit) {
+                    slotFree.await();
+                }
+                ++inFlight;
+            } finally {
+                lock.unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lock.lock();
+            ++inFlight;
+            lock.unlock();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * @param failure the failure of a request, null if it succeeded
+     * @return true if the failure is a sign of overload: a response that
+     *         did not come in time, 429 or a 5xx status. A refused or timed
+     *         out connection, an open circuit, a rejected session and other
+     *         4xx statuses are about one sensor, not the load.
+     */
+    static boolean isOverload (IOException failure) {
+        if (failure instanceof HttpStatusException) {
+            int status = ((HttpStatusException) failure).status;
+            return status == 429 || status >= 500;
+        }
+        return failure instanceof SocketTimeoutException
+                || (failure instanceof HttpTimeoutException
+                        && !(failure instanceof HttpConnectTimeoutException));
+    }
+
+    /**
+     * Frees the slot of a request and adjusts the limit
+     * @param kind the kind of request, latencies are compared per kind
+     * @param start the value acquire returned
+     * @param failure the failure of the request, null if it succeeded. Only
+     *        an overload failure lowers the limit.
+     */
+    void release (String kind, long start, IOException failure) {
+        boolean failed = isOverload(failure);
+        long now = System.nanoTime();
+        long latency = now - start;
+        lock.lock();
+        try {
+            --inFlight;
+            LatencyWindow window = baselines.computeIfAbsent(kind,
+                    k -> new LatencyWindow());
+            long baseline = window.median();
+            window.add(latency);
+            Double average = smoothed.get(kind);
+            average = average == null ? latency
+                    : average + SMOOTHING * (latency - average);
+            smoothed.put(kind, average);
+            // a few slow requests are ordinary variance, only a latency
+            // that stays high means overload
+            boolean slowRequest = baseline >= 0
+                    && latency > baseline * LATENCY_TOLERANCE
+                    && average > baseline * LATENCY_TOLERANCE;
+            int slowRun = slowRequest ? slowRuns.getOrDefault(kind, 0) + 1 : 0;
+            slowRuns.put(kind, slowRun);
+            boolean slow = slowRun >= SLOW_SAMPLES;
+            if (failed || slow) {
+                // one decrease per round trip, however many requests of
+                // that round trip were slow
+                if (start > lastDecrease) {
+                    limit = Math.max(1, limit * DECREASE_FACTOR);
+                    // judge the new limit by its own latencies
+                    smoothed.clear();
+                    slowRuns.clear();
+                    slowStart = false;
+                    lastDecrease = now;
+                    ++decreases;
+                }
+            } else if (slowStart) {
+                limit = Math.min(maxLimit, limit + 1);
+            } else {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            lowestLimit = Math.min(lowestLimit, (int) limit);
+            highestLimit = Math.max(highestLimit, (int) limit);
+            slotFree.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current limit, its range so far and the number of
+     *         decreases
+     */
+    String summary () {
+        lock.lock();
+        try {
+            return "Adaptive concurrency " +(int) limit+ " of " +maxLimit+
+                    " (range " +lowestLimit+ "-" +highestLimit+ ", " +
+                    decreases+ " decreases)";
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void sleep (long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+}
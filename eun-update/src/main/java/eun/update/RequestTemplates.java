@@ -0,0 +1,64 @@
+package eun.update;
+
+import java.net.http.HttpRequest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request templates, one per request URI and content type, so per sensor
+ * and EUN type. A template has the URI parsed, the timeout and the fixed
+ * headers set, and each request is a copy of it with only the method, body
+ * and cookie added. Bulk fetches, snapshots, watch mode pushes and library
+ * calls reuse the templates of the sensors they have seen.
+ */
+class RequestTemplates {
+    // templates kept before the cache starts over, so a huge inventory
+    // can't grow it without bound
+    static final int MAX_TEMPLATES = 16384;
+
+    // "contentType uri" to its template, never changed once cached
+    private static final Map<String, HttpRequest.Builder> templates =
+            new ConcurrentHashMap<String, HttpRequest.Builder>();
+
+    private RequestTemplates () {
+    }
+
+    /**
+     * @param uri the complete URI string
+     * @param contentType the content type of the request body
+     * @return a new builder with the URI, timeout and fixed headers set
+     */
+    static HttpRequest.Builder request (String uri, String contentType) {
+        String key = contentType + " " + uri;
+        HttpRequest.Builder template = templates.get(key);
+        if (template == null) {
+            if (templates.size() >= MAX_TEMPLATES) {
+                templates.clear();
+            }
+            template = create(uri, contentType);
+            templates.put(key, template);
+        }
+        return template.copy();
+    }
+
+    /**
+     * Drops every template, after the timeouts or compression changed
+     */
+    static void clear () {
+        templates.clear();
+    }
+
+    private static HttpRequest.Builder create (String uri, String contentType) {
+        HttpRequest.Builder builder = SensorTransport.newRequest(uri);
+        builder.header("Accept", "text/xml");
+        builder.header("Accept-Charset", "iso-8859-1,*,utf-8");
+        if (SensorTransport.compression()) {
+            builder.header("Accept-Encoding", SensorTransport.ACCEPT_ENCODING);
+        }
+        builder.header("User-Agent", EunUpdate.USER_AGENT);
+        builder.header("Pragma", "no-cache");
+        builder.header("X-Requested-With", "XMLHttpRequest");
+        builder.header("Content-Type", contentType);
+        return builder;
+    }
+}
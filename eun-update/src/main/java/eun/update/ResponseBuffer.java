@@ -0,0 +1,111 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable byte buffer that holds one raw sensor response.
+ * The response is read straight from the connection into the buffer, sized
+ * from Content-Length when the sensor sends one, and the bytes are handed
+ * out without copying. This keeps a single copy of an EUN record, image
+ * included, on the heap. Without a length, as for a compressed response,
+ * the buffer grows by half at a time, so the old and the new array together
+ * are at most two and a half times the record while it is read.
+ */
+class ResponseBuffer {
+    private static final int DEFAULT_SIZE = 8192;
+
+    // largest buffer the VM can allocate
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private byte[] buf;
+
+    private int count;
+
+    ResponseBuffer () {
+        buf = new byte[DEFAULT_SIZE];
+    }
+
+    /**
+     * Reads the stream to its end, appending to the buffer
+     * @param in the response stream, not closed
+     * @param expected the expected length, or -1 if unknown
+     * @throws IOException if the stream can't be read or is too large
+     */
+    void readFrom (InputStream in, long expected) throws IOException {
+        if (expected > MAX_SIZE - count) {
+            throw new IOException("Response too large [" +expected+ "]");
+        }
+        if (expected > 0) {
+            // one extra byte so reaching the end doesn't force a grow
+            ensureCapacity(count + (int) expected + 1);
+        }
+        int n;
+        while (true) {
+            if (count == buf.length) {
+                ensureCapacity(count + 1);
+            }
+            n = in.read(buf, count, buf.length - count);
+            if (n < 0) {
+                break;
+            }
+            count += n;
+        }
+    }
+
+    /**
+     * Drops the bytes read so far, keeping the buffer for a retry
+     */
+    void clear () {
+        count = 0;
+    }
+
+    private void ensureCapacity (int minCapacity) throws IOException {
+        if (minCapacity < 0 || minCapacity > MAX_SIZE) {
+            throw new IOException("Response too large");
+        }
+        if (minCapacity > buf.length) {
+            int newSize = (int) Math.min(MAX_SIZE,
+                    Math.max(buf.length + ((long) buf.length >> 1), minCapacity));
+            byte[] newBuf = new byte[newSize];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+
+    /**
+     * @return the backing array, valid up to length()
+     */
+    byte[] array () {
+        return buf;
+    }
+
+    /**
+     * @return the number of bytes read
+     */
+    int length () {
+        return count;
+    }
+
+    /**
+     * @return the index of the first non-whitespace byte, or length() if
+     *         the response is blank
+     */
+    int firstContent () {
+        int i = 0;
+        while (i < count && (buf[i] == ' ' || buf[i] == '\t'
+                || buf[i] == '\r' || buf[i] == '\n')) {
+            ++i;
+        }
+        return i;
+    }
+
+    /**
+     * Decodes the response as UTF-8. Only meant for small responses and
+     * debug output.
+     */
+    @Override
+    public String toString () {
+        return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+}
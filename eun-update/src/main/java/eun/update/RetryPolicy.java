@@ -0,0 +1,84 @@
+package eun.update;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which failed sensor requests are sent again, and after how long.
+ * A request that never reached the sensor, or that the sensor refused with
+ * 429 or 503, is safe to send again whatever it does. Other failures, such
+ * as a timeout while waiting for the response, are retried only for
+ * idempotent requests, since the sensor may already have applied it. The
+ * delay is exponential with full jitter, so sensors that failed together
+ * are not retried together.
+ */
+class RetryPolicy {
+    static final int DEFAULT_RETRIES = 2;
+
+    static final long BASE_DELAY_MILLIS = 200;
+
+    static final long MAX_DELAY_MILLIS = 5000;
+
+    // retries after the first attempt
+    final int retries;
+
+    /**
+     * @param retries how many times a request is sent again
+     */
+    RetryPolicy (int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @param attempt the failed attempt, 0 for the first
+     * @return a random delay up to the exponential bound of the attempt
+     */
+    long backoffMillis (int attempt) {
+        long bound = Math.min(MAX_DELAY_MILLIS,
+                BASE_DELAY_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * @param e the failure of a request
+     * @return true if the sensor certainly did not apply the request
+     */
+    static boolean notDelivered (IOException e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).status;
+            return status == 429 || status == 503;
+        }
+        return e instanceof ConnectException
+                || e instanceof HttpConnectTimeoutException
+                || e instanceof CircuitOpenException
+                || e instanceof SessionExpiredException;
+    }
+
+    /**
+     * @param e the failure of a request
+     * @param idempotent true if sending the request twice is harmless
+     * @return true if the request should be sent again
+     */
+    static boolean isRetryable (IOException e, boolean idempotent) {
+        // an expired session needs a login first, an open circuit means
+        // the sensor is known to be down
+        if (e instanceof SessionExpiredException
+                || e instanceof CircuitOpenException) {
+            return false;
+        }
+        if (notDelivered(e)) {
+            return true;
+        }
+        if (!idempotent) {
+            return false;
+        }
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).status;
+            return status == 408 || status >= 500;
+        }
+        // timeouts, resets and truncated responses
+        return true;
+    }
+}
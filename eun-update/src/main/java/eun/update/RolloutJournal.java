@@ -0,0 +1,228 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Append-only journal of the outcome of each update, one line per sensor and
+ * EUN type.
+ * A line holds the time, the sensor, the EUN type, the outcome, the hash of
+ * the record before the update, the hash of the exact record sent, the hash
+ * of the message and the status text, separated by tabs, so the journal is
+ * also an audit trail of what was sent. Lines are appended as the updates
+ * finish and forced to disk in batches by a background thread, so a crash
+ * loses at most the last batch, and those sensors are simply done again. A
+ * resumed run skips a sensor and type whose last line completed with the
+ * same message, so a journal to resume from holds one rollout. A line torn
+ * by a crash is ended before the next line is appended.
+ */
+class RolloutJournal {
+    static final String UPDATED = "UPDATED";
+    static final String CURRENT = "CURRENT";
+    static final String FAILED = "FAILED";
+
+    // how often appended lines are forced to disk
+    static final long SYNC_INTERVAL_MILLIS = 200;
+
+    private static final String NONE = "-";
+
+    private final Path journalFile;
+
+    // skip the work the journal shows as done
+    private final boolean resume;
+
+    private final FileChannel channel;
+
+    // key "sensorURL eunType", value the message hash of the last line if
+    // it completed, guarded by this
+    private final Map<String, String> completed = new HashMap<String, String>();
+
+    // lines appended since the last force, guarded by this
+    private boolean dirty = false;
+
+    private volatile boolean closed = false;
+
+    private final Thread syncer;
+
+    /**
+     * Opens the journal for appending, reading the outcomes already in it
+     * @param journalFile the journal file, created if it does not exist
+     * @param resume true to skip the work the journal shows as done
+     * @throws IOException if the journal can't be read or opened
+     */
+    RolloutJournal (Path journalFile, boolean resume) throws IOException {
+        this.journalFile = journalFile;
+        this.resume = resume;
+        if (Files.exists(journalFile)) {
+            try (BufferedReader in = Files.newBufferedReader(journalFile,
+                    StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    // a line torn by a crash has too few fields
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 8) {
+                        remember(fields[1], fields[2], fields[3], fields[6]);
+                    }
+                }
+            }
+        }
+        CacheFiles.createDirectory(journalFile);
+        Set<OpenOption> options = new HashSet<OpenOption>(Arrays.asList(
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND,
+                StandardOpenOption.WRITE));
+        if (CacheFiles.isPosix(journalFile.toAbsolutePath().getParent())) {
+            channel = FileChannel.open(journalFile, options,
+                    PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            channel = FileChannel.open(journalFile, options);
+        }
+        endTornLine();
+        syncer = Thread.ofVirtual().name("journal-sync").start(this::syncLoop);
+    }
+
+    /**
+     * Ends a last line a crash left without its newline, otherwise the next
+     * line would be glued to it and ignored when the journal is read
+     * @throws IOException if the journal can't be read or written
+     */
+    private void endTornLine () throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        try (SeekableByteChannel in = Files.newByteChannel(journalFile)) {
+            if (in.size() == 0) {
+                return;
+            }
+            in.position(in.size() - 1).read(last);
+        }
+        if (last.get(0) != '\n') {
+            ByteBuffer newline = ByteBuffer.wrap(new byte[] {'\n'});
+            while (newline.hasRemaining()) {
+                channel.write(newline);
+            }
+        }
+    }
+
+    /**
+     * @return the journal file in the user's home directory
+     */
+    static Path defaultFile () {
+        return CacheFiles.defaultFile("journal.log");
+    }
+
+    /**
+     * @param sensorUrl the sensor protocol and IP part
+     * @param eunType the EUN type name
+     * @param messageHash hash of the message to send
+     * @return true if resuming and the journal shows this message already
+     *         on the sensor
+     */
+    synchronized boolean isDone (String sensorUrl, String eunType,
+            String messageHash) {
+        return resume && messageHash.equals(
+                completed.get(sensorUrl + " " + eunType));
+    }
+
+    /**
+     * Appends the outcome of one update. A failure to write is reported and
+     * the update itself still counts.
+     * @param sensorUrl the sensor protocol and IP part
+     * @param eunType the EUN type name
+     * @param outcome UPDATED, CURRENT or FAILED
+     * @param beforeHash hash of the fetched record, null if not fetched
+     * @param sentHash hash of the record sent, null if nothing was sent
+     * @param messageHash hash of the new message
+     * @param status the status text
+     */
+    void append (String sensorUrl, String eunType, String outcome,
+            String beforeHash, String sentHash, String messageHash,
+            String status) {
+        String line = Instant.now() + "\t" + sensorUrl + "\t" + eunType +
+                "\t" + outcome + "\t" + orNone(beforeHash) + "\t" +
+                orNone(sentHash) + "\t" + orNone(messageHash) + "\t" +
+                status.replaceAll("[\t\r\n]", " ") + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        synchronized (this) {
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                dirty = true;
+            } catch (IOException e) {
+                System.out.println("Unable to write journal " +journalFile+
+                        " [" +e.getMessage()+ "]");
+            }
+            remember(sensorUrl, eunType, outcome, orNone(messageHash));
+        }
+    }
+
+    /**
+     * Forces the last lines to disk and closes the journal
+     */
+    void close () {
+        if (closed) {
+            return;
+        }
+        // not interrupted, an interrupt during force closes the channel
+        closed = true;
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void syncLoop () {
+        while (!closed) {
+            try {
+                Thread.sleep(SYNC_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            sync();
+        }
+    }
+
+    /**
+     * Forces the appended lines to disk, outside the lock so appends go on
+     * while the disk catches up
+     */
+    private void sync () {
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("Unable to sync journal " +journalFile+
+                    " [" +e.getMessage()+ "]");
+        }
+    }
+
+    private void remember (String sensorUrl, String eunType, String outcome,
+            String messageHash) {
+        String key = sensorUrl + " " + eunType;
+        if (UPDATED.equals(outcome) || CURRENT.equals(outcome)) {
+            completed.put(key, messageHash);
+        } else {
+            completed.remove(key);
+        }
+    }
+
+    private static String orNone (String hash) {
+        return hash != null ? hash : NONE;
+    }
+}
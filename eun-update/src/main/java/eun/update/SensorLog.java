@@ -0,0 +1,306 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Structured log of the requests to the sensors, one logfmt line per event
+ * tagged with the sensor, EUN type and phase:
+ *
+ *   time=... level=DEBUG sensor=https://10.0.0.1 type=Application phase=fetch msg=Response bytes=1048702 sha256=...
+ *
+ * Request threads only queue the event, a background thread formats and
+ * writes the lines, so logging never waits on the console or the disk. When
+ * the queue is full an event is dropped and counted rather than slowing the
+ * requests down. Large bodies are logged as their size and hash, and
+ * session cookies only as a hash. Nothing is logged until configure is
+ * called, so programs using EunClient get no output unless they ask.
+ */
+final class SensorLog {
+    enum Level { ERROR, WARN, INFO, DEBUG }
+
+    static final Level DEFAULT_LEVEL = Level.WARN;
+
+    // bodies up to this size are logged as text
+    static final int BODY_LIMIT = 256;
+
+    // events waiting for the writer
+    static final int QUEUE_SIZE = 8192;
+
+    // null until configured, nothing is logged
+    private static volatile Level level;
+
+    // the log file, null for stderr
+    private static Path logFile;
+
+    private static final BlockingQueue<Object> queue =
+            new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // guarded by SensorLog.class
+    private static Thread writer;
+
+    // set once the writer runs, so logging threads don't take the lock
+    private static volatile boolean started = false;
+
+    private SensorLog () {
+    }
+
+    /**
+     * Sets the level and destination, before the first event is logged
+     * @param level the most detailed level written
+     * @param file the file to append to, null for stderr
+     */
+    static synchronized void configure (Level level, Path file) {
+        SensorLog.level = level;
+        SensorLog.logFile = file;
+    }
+
+    /**
+     * @param name a level name, in any case
+     * @return the level, or null if there is no such level
+     */
+    static Level parseLevel (String name) {
+        try {
+            return Level.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param eventLevel the level of an event
+     * @return true if events of that level are written, checked before
+     *         building an expensive event
+     */
+    static boolean isEnabled (Level eventLevel) {
+        Level current = level;
+        return current != null && eventLevel.compareTo(current) <= 0;
+    }
+
+    /**
+     * Queues an event, or drops it if the queue is full
+     * @param eventLevel the level of the event
+     * @param sensorUrl the sensor protocol and IP part, or null
+     * @param eunType the EUN type name, or null
+     * @param phase the LatencyMetrics phase name, or null
+     * @param msg the message
+     * @param fields further keys and values, alternating
+     */
+    static void log (Level eventLevel, String sensorUrl, String eunType,
+            String phase, String msg, Object... fields) {
+        if (!isEnabled(eventLevel)) {
+            return;
+        }
+        if (!started) {
+            startWriter();
+        }
+        Event event = new Event(System.currentTimeMillis(), eventLevel,
+                sensorUrl, eunType, phase, msg, fields);
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    static void debug (String sensorUrl, String eunType, String phase,
+            String msg, Object... fields) {
+        log(Level.DEBUG, sensorUrl, eunType, phase, msg, fields);
+    }
+
+    static void warn (String sensorUrl, String eunType, String phase,
+            String msg, Object... fields) {
+        log(Level.WARN, sensorUrl, eunType, phase, msg, fields);
+    }
+
+    /**
+     * @param body a response
+     * @return the fields describing it: the text of a small body, otherwise
+     *         its size and hash
+     */
+    static Object[] body (ResponseBuffer body) {
+        if (body.length() <= BODY_LIMIT) {
+            return new Object[] {"bytes", body.length(), "body", body.toString()};
+        }
+        return new Object[] {"bytes", body.length(), "sha256",
+                RecordCache.hash(body.array(), 0, body.length())};
+    }
+
+    /**
+     * @param text a message or other text
+     * @return the fields describing it: short text as it is, otherwise its
+     *         size and hash
+     */
+    static Object[] body (String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= BODY_LIMIT) {
+            return new Object[] {"bytes", bytes.length, "body", text};
+        }
+        return new Object[] {"bytes", bytes.length, "sha256",
+                RecordCache.hash(bytes, 0, bytes.length)};
+    }
+
+    /**
+     * @param secret a session cookie or other credential
+     * @return a short hash, enough to tell two values apart
+     */
+    static String redact (CharSequence secret) {
+        return "sha256:" + RecordCache.hash(secret.toString()).substring(0, 12);
+    }
+
+    /**
+     * Waits until the events queued so far are written
+     * @param timeoutMillis the longest wait
+     */
+    static void flush (long timeoutMillis) {
+        if (!started) {
+            return;
+        }
+        CountDownLatch written = new CountDownLatch(1);
+        try {
+            if (queue.offer(written, timeoutMillis, TimeUnit.MILLISECONDS)) {
+                written.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized void startWriter () {
+        if (writer != null) {
+            return;
+        }
+        Writer out;
+        try {
+            out = logFile == null ? new OutputStreamWriter(System.err,
+                    StandardCharsets.UTF_8) : Files.newBufferedWriter(logFile,
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("Unable to open log " +logFile+ " [" +e.getMessage()+ "], logging to stderr");
+            out = new OutputStreamWriter(System.err, StandardCharsets.UTF_8);
+        }
+        Writer sink = new BufferedWriter(out, 64 * 1024);
+        writer = new Thread(() -> writeLoop(sink), "eun-log");
+        writer.setDaemon(true);
+        writer.start();
+        started = true;
+        // the last events are written however the run ends
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+    }
+
+    /**
+     * Writes events in batches, flushing whenever the queue runs dry
+     */
+    private static void writeLoop (Writer sink) {
+        List<Object> batch = new ArrayList<Object>();
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            try {
+                for (Object item : batch) {
+                    if (item instanceof Event) {
+                        line.setLength(0);
+                        ((Event) item).format(line);
+                        sink.write(line.toString());
+                        continue;
+                    }
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        line.setLength(0);
+                        new Event(System.currentTimeMillis(), Level.WARN, null,
+                                null, null, "Log queue full, events dropped",
+                                new Object[] {"dropped", lost}).format(line);
+                        sink.write(line.toString());
+                    }
+                    sink.flush();
+                    ((CountDownLatch) item).countDown();
+                }
+                if (queue.isEmpty()) {
+                    sink.flush();
+                }
+            } catch (IOException e) {
+                // nowhere left to report it
+            }
+            batch.clear();
+        }
+    }
+
+    private static final class Event {
+        final long time;
+        final Level level;
+        final String sensorUrl;
+        final String eunType;
+        final String phase;
+        final String msg;
+        final Object[] fields;
+
+        Event (long time, Level level, String sensorUrl, String eunType,
+                String phase, String msg, Object[] fields) {
+            this.time = time;
+            this.level = level;
+            this.sensorUrl = sensorUrl;
+            this.eunType = eunType;
+            this.phase = phase;
+            this.msg = msg;
+            this.fields = fields;
+        }
+
+        void format (StringBuilder line) {
+            line.append("time=").append(Instant.ofEpochMilli(time))
+                    .append(" level=").append(level);
+            append(line, "sensor", sensorUrl);
+            append(line, "type", eunType);
+            append(line, "phase", phase);
+            append(line, "msg", msg);
+            for (int n = 0; n + 1 < fields.length; n += 2) {
+                append(line, String.valueOf(fields[n]), fields[n + 1]);
+            }
+            line.append('\n');
+        }
+
+        /**
+         * Appends key=value, quoting values with spaces, quotes or
+         * control characters
+         */
+        private static void append (StringBuilder line, String key, Object value) {
+            if (value == null || (value instanceof String && ((String) value).isEmpty())) {
+                return;
+            }
+            String text = value.toString();
+            line.append(' ').append(key).append('=');
+            boolean quote = false;
+            for (int n = 0; n < text.length() && !quote; n++) {
+                char c = text.charAt(n);
+                quote = c <= ' ' || c == '"' || c == '=' || c == '\\';
+            }
+            if (!quote) {
+                line.append(text);
+                return;
+            }
+            line.append('"');
+            for (int n = 0; n < text.length(); n++) {
+                char c = text.charAt(n);
+                switch (c) {
+                case '"': line.append("\\\""); break;
+                case '\\': line.append("\\\\"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                case '\t': line.append("\\t"); break;
+                default: line.append(c);
+                }
+            }
+            line.append('"');
+        }
+    }
+}
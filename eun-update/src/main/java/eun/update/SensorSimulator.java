@@ -0,0 +1,454 @@
+package eun.update;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.KeyStore;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ * Local HTTPS stand-in for CX/PRSM sensors, for testing EunUpdate without
+ * hardware.
+ * It serves the login page, the seven geteunbytype endpoints and the update
+ * endpoint. One listener plays many sensors: every loopback address
+ * (127.x.y.z) is a separate sensor with its own sessions and records, so an
+ * inventory of thousands of sensors needs a single port. Latency, error
+ * rate, session lifetime and EUN image size are configurable, so fleet-scale
+ * throughput can be measured and regressions caught on one machine.
+ */
+public class SensorSimulator {
+    // login and update endpoints, the retrieval endpoints come from eunTypes
+    static final String LOGIN_SEGMENT = "/authentication/login/";
+
+    static final String GET_EUN_PREFIX = "/api/configure/customeun/CustomEUN/geteunbytype/";
+
+    // listening port, 0 picks a free one
+    int port = 8443;
+
+    // added to every request
+    int latencyMillis = 0;
+
+    // fraction of requests answered with a 500 error
+    double errorRate = 0.0;
+
+    // the next requests answered with a 500 error whatever the error rate,
+    // so tests can fail a known request
+    final AtomicInteger failNext = new AtomicInteger();
+
+    // session lifetime, 0 for sessions that never expire
+    int sessionSeconds = 0;
+
+    // size of the decoded EUN image
+    int imageBytes = 16 * 1024;
+
+    // gzip records for clients that accept it
+    boolean compress = true;
+
+    // PKCS12 keystore and its password, a temporary one is created if null
+    String keystoreFile;
+
+    String keystorePassword = "changeit";
+
+    private HttpsServer server;
+
+    private ExecutorService executor;
+
+    // the records every sensor starts with, eun type code to raw record
+    private final Map<String, byte[]> defaultRecords =
+            new ConcurrentHashMap<String, byte[]>();
+
+    // raw record to its gzip encoding, records are never changed in place
+    private final Map<byte[], byte[]> gzipped =
+            Collections.synchronizedMap(new WeakHashMap<byte[], byte[]>());
+
+    // loopback address to sensor state
+    private final Map<String, SimulatedSensor> sensors =
+            new ConcurrentHashMap<String, SimulatedSensor>();
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong logins = new AtomicLong();
+    final AtomicLong fetches = new AtomicLong();
+    final AtomicLong updates = new AtomicLong();
+    final AtomicLong injectedErrors = new AtomicLong();
+    final AtomicLong expiredSessions = new AtomicLong();
+    final AtomicLong fetchBytes = new AtomicLong();
+
+    /**
+     * The sessions and changed records of one simulated sensor
+     */
+    private static class SimulatedSensor {
+        // session cookie value to expiry millis
+        final Map<String, Long> sessions = new ConcurrentHashMap<String, Long>();
+
+        // eun type code to updated raw record
+        final Map<String, byte[]> records = new ConcurrentHashMap<String, byte[]>();
+    }
+
+    public static void usage () {
+        System.out.println("SensorSimulator");
+        System.out.println("Usage:");
+        System.out.println("   SensorSimulator [-p port] [-n sensors -o inventoryFile] [-l millis] [-e rate]");
+        System.out.println("                   [-x seconds] [-i bytes] [-z 0|1] [-k keystore/password]");
+        System.out.println("    -p listening port [8443]");
+        System.out.println("    -n number of sensors written to the inventory file given with -o,");
+        System.out.println("       each sensor is a separate 127.x.y.z address on the same port");
+        System.out.println("    -l latency added to every request, in milliseconds [0]");
+        System.out.println("    -e fraction of requests answered with an HTTP 500 error [0]");
+        System.out.println("    -x session lifetime in seconds, 0 never expires [0]");
+        System.out.println("    -i size of the EUN image in bytes [16384]");
+        System.out.println("    -z 1 gzips records for clients that accept gzip, 0 never compresses [1]");
+        System.out.println("    -k PKCS12 keystore and password, a self-signed one is created if omitted");
+        System.out.println("Example: 1000 sensors with 50 ms latency and 1 MB images");
+        System.out.println("   java SensorSimulator -n 1000 -o sensors.txt -l 50 -i 1048576");
+        System.out.println("   java EunUpdate -f sensors.txt Application -u cisco/cisco -m ./myfile.txt -p 200");
+    }
+
+    /**
+     * Main entry point, runs until the process is stopped
+     * @param args A list of command line parameters
+     */
+    public static void main (String[] args) {
+        SensorSimulator simulator = new SensorSimulator();
+        int sensorCount = 0;
+        String inventoryFile = null;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    usage();
+                    return;
+                }
+                String value = args[i+1];
+                switch (args[i].toLowerCase()) {
+                case "-p": simulator.port = Integer.parseInt(value); break;
+                case "-n": sensorCount = Integer.parseInt(value); break;
+                case "-o": inventoryFile = value; break;
+                case "-l": simulator.latencyMillis = Integer.parseInt(value); break;
+                case "-e": simulator.errorRate = Double.parseDouble(value); break;
+                case "-x": simulator.sessionSeconds = Integer.parseInt(value); break;
+                case "-i": simulator.imageBytes = Integer.parseInt(value); break;
+                case "-z": simulator.compress = Integer.parseInt(value) != 0; break;
+                case "-k":
+                    String[] sbuf = value.split("/");
+                    simulator.keystoreFile = sbuf[0];
+                    if (sbuf.length > 1) {
+                        simulator.keystorePassword = sbuf[1];
+                    }
+                    break;
+                default:
+                    usage();
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number [" +e.getMessage()+ "]");
+            return;
+        }
+
+        try {
+            simulator.start();
+            if (sensorCount > 0) {
+                if (inventoryFile == null) {
+                    usage();
+                    simulator.stop();
+                    return;
+                }
+                Files.write(Paths.get(inventoryFile),
+                        simulator.inventory(sensorCount));
+                System.out.println("Wrote " +sensorCount+ " sensors to " + inventoryFile);
+            }
+        } catch (Exception e) {
+            System.out.println("Unable to start simulator [" +e.getMessage()+ "]");
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            simulator.stop();
+            System.out.println(simulator.statistics());
+        }));
+        System.out.println("Simulating sensors on port " + simulator.port());
+    }
+
+    /**
+     * Starts the server
+     * @throws Exception if the keystore or port can't be set up
+     */
+    void start () throws Exception {
+        for (String segment : EunUpdate.eunTypes.values()) {
+            String code = typeCode(segment);
+            defaultRecords.put(code, createRecord(code));
+        }
+        server = HttpsServer.create(new InetSocketAddress(port), 1024);
+        server.setHttpsConfigurator(new HttpsConfigurator(createSslContext()));
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Stops the server at once
+     */
+    void stop () {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the listening port
+     */
+    int port () {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @param count the number of sensors
+     * @return inventory lines for that many sensors, one loopback address each
+     */
+    List<String> inventory (int count) {
+        List<String> lines = new ArrayList<String>();
+        lines.add("# " +count+ " simulated sensors");
+        for (int n = 0; n < count; n++) {
+            lines.add("https://" + sensorAddress(n) + ":" + port());
+        }
+        return lines;
+    }
+
+    /**
+     * @param n the sensor number
+     * @return the loopback address of that sensor, 127.0.0.1 first
+     */
+    static String sensorAddress (int n) {
+        return "127." + (n / 62500) + "." + ((n / 250) % 250) + "." + (n % 250 + 1);
+    }
+
+    /**
+     * @return the request counters as one line
+     */
+    String statistics () {
+        return "requests=" +requests+ " logins=" +logins+ " fetches=" +fetches+
+                " updates=" +updates+ " injectedErrors=" +injectedErrors+
+                " expiredSessions=" +expiredSessions+ " fetchBytes=" +fetchBytes+
+                " sensors=" + sensors.size();
+    }
+
+    private void handle (HttpExchange ex) throws IOException {
+        try {
+            requests.incrementAndGet();
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (failNext.getAndUpdate(n -> Math.max(n - 1, 0)) > 0 || (errorRate > 0
+                    && ThreadLocalRandom.current().nextDouble() < errorRate)) {
+                injectedErrors.incrementAndGet();
+                ex.getRequestBody().readAllBytes();
+                reply(ex, 500, "{\"success\":false,\"error\":\"injected\"}");
+                return;
+            }
+            SimulatedSensor sensor = sensors.computeIfAbsent(
+                    ex.getLocalAddress().getAddress().getHostAddress(),
+                    key -> new SimulatedSensor());
+            String path = ex.getRequestURI().getPath();
+            if (path.equals(LOGIN_SEGMENT)) {
+                handleLogin(ex, sensor);
+            } else if (!hasSession(ex, sensor)) {
+                ex.getRequestBody().readAllBytes();
+                ex.getResponseHeaders().add("Location", LOGIN_SEGMENT + "?next=" + path);
+                reply(ex, 302, "");
+            } else if (path.startsWith(GET_EUN_PREFIX) && "GET".equals(ex.getRequestMethod())) {
+                handleFetch(ex, sensor, path);
+            } else if (path.equals(EunUpdate.UPDATE_EUN_SEGMENT) && "POST".equals(ex.getRequestMethod())) {
+                handleUpdate(ex, sensor);
+            } else {
+                ex.getRequestBody().readAllBytes();
+                reply(ex, 404, "{\"success\":false,\"error\":\"not found\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void handleLogin (HttpExchange ex, SimulatedSensor sensor) throws IOException {
+        String form = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        if (!"POST".equals(ex.getRequestMethod()) || !form.contains("username=")
+                || form.contains("username=&")) {
+            reply(ex, 403, "{\"success\":false}");
+            return;
+        }
+        logins.incrementAndGet();
+        String cookie = "sessionid=" + UUID.randomUUID().toString().replace("-", "");
+        long expiry = sessionSeconds > 0
+                ? System.currentTimeMillis() + sessionSeconds * 1000L : Long.MAX_VALUE;
+        sensor.sessions.put(cookie, expiry);
+        ex.getResponseHeaders().add("Set-Cookie", cookie + "; Path=/; HttpOnly");
+        reply(ex, 200, "{\"success\":true}");
+    }
+
+    private boolean hasSession (HttpExchange ex, SimulatedSensor sensor) {
+        String cookie = ex.getRequestHeaders().getFirst("Cookie");
+        if (cookie == null) {
+            return false;
+        }
+        Long expiry = sensor.sessions.get(cookie.trim());
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry < System.currentTimeMillis()) {
+            sensor.sessions.remove(cookie.trim());
+            expiredSessions.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void handleFetch (HttpExchange ex, SimulatedSensor sensor, String path)
+            throws IOException {
+        String code = typeCode(path);
+        byte[] record = sensor.records.get(code);
+        if (record == null) {
+            record = defaultRecords.get(code);
+        }
+        if (record == null) {
+            reply(ex, 404, "{\"success\":false,\"error\":\"unknown eun type\"}");
+            return;
+        }
+        fetches.incrementAndGet();
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        String accept = ex.getRequestHeaders().getFirst("Accept-Encoding");
+        if (compress && accept != null && accept.contains("gzip")) {
+            record = gzip(record);
+            ex.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        fetchBytes.addAndGet(record.length);
+        ex.sendResponseHeaders(200, record.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(record);
+        }
+    }
+
+    private void handleUpdate (HttpExchange ex, SimulatedSensor sensor) throws IOException {
+        ResponseBuffer body = new ResponseBuffer();
+        String length = ex.getRequestHeaders().getFirst("Content-Length");
+        body.readFrom(ex.getRequestBody(), length == null ? -1 : Long.parseLong(length));
+        String code;
+        try {
+            EunRecord record = EunRecord.parse(body);
+            int[] span = record.valueSpan("eun_type");
+            if (record.getString("message") == null || span == null) {
+                reply(ex, 400, "{\"success\":false,\"error\":\"incomplete record\"}");
+                return;
+            }
+            code = new String(body.array(), span[0], span[1] - span[0],
+                    StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            reply(ex, 400, "{\"success\":false,\"error\":\"malformed record\"}");
+            return;
+        }
+        if (!defaultRecords.containsKey(code)) {
+            reply(ex, 400, "{\"success\":false,\"error\":\"unknown eun type\"}");
+            return;
+        }
+        updates.incrementAndGet();
+        sensor.records.put(code, Arrays.copyOf(body.array(), body.length()));
+        reply(ex, 200, "{\"success\":true}");
+    }
+
+    /**
+     * @param record a raw record
+     * @return its gzip encoding, compressed once per record
+     */
+    private byte[] gzip (byte[] record) throws IOException {
+        byte[] encoded = gzipped.get(record);
+        if (encoded == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length / 2);
+            try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                out.write(record);
+            }
+            encoded = bytes.toByteArray();
+            gzipped.put(record, encoded);
+        }
+        return encoded;
+    }
+
+    private static void reply (HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = ex.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * @param path a geteunbytype path such as .../geteunbytype/8/1.json/
+     * @return the eun type code, "8" in the example
+     */
+    private static String typeCode (String path) {
+        String rest = path.substring(path.indexOf("geteunbytype/") + "geteunbytype/".length());
+        int slash = rest.indexOf('/');
+        return slash < 0 ? rest : rest.substring(0, slash);
+    }
+
+    private byte[] createRecord (String code) {
+        byte[] image = new byte[imageBytes];
+        new Random(Long.parseLong(code)).nextBytes(image);
+        String record = "{\"id\":" +code+ ",\"eun_type\":" +code+
+                ",\"caption\":\"Simulated EUN " +code+ "\"" +
+                ",\"message\":\"Access to this page is <b>restricted</b>.\"" +
+                ",\"image_type\":\"image/png\"" +
+                ",\"image\":\"" + Base64.getEncoder().encodeToString(image) + "\"}";
+        return record.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private SSLContext createSslContext () throws Exception {
+        if (keystoreFile == null) {
+            keystoreFile = createKeystore();
+        }
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(keystoreFile))) {
+            ks.load(in, keystorePassword.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, keystorePassword.toCharArray());
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(kmf.getKeyManagers(), null, null);
+        return sc;
+    }
+
+    /**
+     * Creates a self-signed keystore with the JDK keytool
+     * @return the keystore filename
+     */
+    private String createKeystore () throws Exception {
+        Path dir = Files.createTempDirectory("eunsim");
+        Path file = dir.resolve("simulator.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool")
+                .toString();
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "sensor",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "3650",
+                "-dname", "CN=EUN sensor simulator", "-storetype", "PKCS12",
+                "-keystore", file.toString(), "-storepass", keystorePassword,
+                "-keypass", keystorePassword)
+                .redirectErrorStream(true).start();
+        p.getInputStream().readAllBytes();
+        if (p.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+        file.toFile().deleteOnExit();
+        dir.toFile().deleteOnExit();
+        return file.toString();
+    }
+}
@@ -0,0 +1,717 @@
+package eun.update;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.security.cert.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.zip.*;
+
+import javax.net.ssl.*;
+
+/**
+ * HTTPS transport shared by every sensor request.
+ * A single HttpClient is built on the first request, on a single SSLContext
+ * that trusts all sensor certificates and host names. Runs that end before
+ * a request, such as usage or a bad parameter, never set up TLS. The client
+ * keeps idle keep-alive connections per sensor, so the login, retrieve and
+ * update requests of one sensor travel over the same connection, and the
+ * shared SSLContext session cache lets a new connection to a known sensor
+ * resume its TLS session instead of doing a full handshake.
+ * The client opens connections on its own, so the context counts the
+ * SSLEngines it creates per host and port, one per new connection, and
+ * times each from its creation, just before the TCP connect, to the end of
+ * its TLS handshake.
+ * Connecting and each wait for response data are bounded by timeouts, and
+ * a circuit breaker per sensor fails requests at once while a sensor is
+ * down, so a dead sensor costs a run its timeouts and no more.
+ * Requests offer gzip and deflate, and a compressed response is inflated as
+ * it is read, so only the decoded record is ever held.
+ */
+class SensorTransport {
+    static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+
+    static final int DEFAULT_READ_TIMEOUT_SECONDS = 30;
+
+    // set by configure before the first request
+    private static volatile Duration connectTimeout =
+            Duration.ofSeconds(DEFAULT_CONNECT_TIMEOUT_SECONDS);
+    private static volatile Duration readTimeout =
+            Duration.ofSeconds(DEFAULT_READ_TIMEOUT_SECONDS);
+
+    // offered in the Accept-Encoding header of every request
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int INFLATE_BUFFER = 16 * 1024;
+
+    // false to ask for uncompressed responses, set by configure
+    private static volatile boolean compression = true;
+
+    // new connections per "host:port"
+    private static final Map<String, LongAdder> connections =
+            new ConcurrentHashMap<String, LongAdder>();
+
+    // handshakes not yet taken per "host:port", a run that records no
+    // metrics never takes them, so at most MAX_HANDSHAKES are kept
+    private static final Map<String, Queue<Handshake>> handshakes =
+            new ConcurrentHashMap<String, Queue<Handshake>>();
+
+    private static final int MAX_HANDSHAKES = 64;
+
+    private static final CircuitBreaker breakers = new CircuitBreaker(
+            CircuitBreaker.DEFAULT_FAILURE_THRESHOLD,
+            CircuitBreaker.DEFAULT_OPEN_MILLIS);
+
+    /**
+     * Built on the first request, so configure can set the connect timeout
+     * first and short runs skip the TLS setup
+     */
+    private static class ClientHolder {
+        static final HttpClient client = HttpClient.newBuilder()
+                .sslContext(new CountingContext(createSslContext()))
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(connectTimeout)
+                .build();
+
+        // closes the body of a response that stalls
+        static final ScheduledExecutorService watchdog =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "read-timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Sets the timeouts and compression, before the first request
+     * @param connect bounds the TCP connect
+     * @param read bounds the wait for the response headers and then each
+     *        wait for more of the body
+     * @param compress true to offer gzip and deflate
+     */
+    static void configure (Duration connect, Duration read, boolean compress) {
+        connectTimeout = connect;
+        readTimeout = read;
+        compression = compress;
+        RequestTemplates.clear();
+    }
+
+    /**
+     * @return true if requests offer compressed responses
+     */
+    static boolean compression () {
+        return compression;
+    }
+
+    /**
+     * Creates the trust-all SSL context used by all connections
+     * @return the initialized context
+     */
+    private static SSLContext createSslContext () {
+        TrustManager[] trustAllCerts = {new MyX509TrustManager()};
+        try {
+            SSLContext sc = SSLContext.getInstance( "TLS" );
+            // the provider's default SecureRandom, seeded on first use
+            sc.init( null, trustAllCerts, null );
+            return sc;
+        } catch ( Exception e ) {
+            throw new IllegalStateException("Unable to initialize TLS", e);
+        }
+    }
+
+    /**
+     * @param uri a sensor URI
+     * @return the number of connections opened to the host and port of the
+     *         URI so far
+     */
+    static long connections (URI uri) {
+        LongAdder count = connections.get(hostKey(uri));
+        return count != null ? count.sum() : 0;
+    }
+
+    /**
+     * Takes the handshakes with the host and port of the URI that ended
+     * since the last call, each is taken once
+     * @param uri a sensor URI
+     * @return the handshakes, oldest first
+     */
+    static List<Handshake> takeHandshakes (URI uri) {
+        Queue<Handshake> queue = handshakes.get(hostKey(uri));
+        List<Handshake> taken = new ArrayList<Handshake>();
+        Handshake handshake;
+        while (queue != null && (handshake = queue.poll()) != null) {
+            taken.add(handshake);
+        }
+        return taken;
+    }
+
+    /**
+     * @param uri a sensor URI
+     * @return "host:port" of the URI, the key of the per-sensor state
+     */
+    private static String hostKey (URI uri) {
+        int port = uri.getPort() != -1 ? uri.getPort()
+                : "http".equalsIgnoreCase(uri.getScheme()) ? 80 : 443;
+        return uri.getHost() + ":" + port;
+    }
+
+    /**
+     * Starts a request for the shared client
+     * @param uri the complete URI string
+     * @return a new request builder
+     */
+    static HttpRequest.Builder newRequest (String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(readTimeout);
+    }
+
+    /**
+     * Sends a request over the shared client. The caller must close the
+     * response body so the connection goes back to the pool. Failures and
+     * 5xx responses count against the circuit of the sensor.
+     * @param request the request to send
+     * @return the response, the body not yet read
+     * @throws CircuitOpenException if the circuit of the sensor is open
+     * @throws IOException if the request fails
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    static HttpResponse<InputStream> send (HttpRequest request)
+            throws IOException, InterruptedException {
+        String key = hostKey(request.uri());
+        if (!breakers.allow(key)) {
+            throw new CircuitOpenException("Circuit open for " + key);
+        }
+        HttpResponse<InputStream> response;
+        try {
+            response = ClientHolder.client.send(request,
+                    info -> HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofInputStream(),
+                    in -> new StallTimeoutInputStream(in, key)));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // an interrupted or unexpectedly failed trial must not leave the
+            // circuit half open
+            breakers.failure(key);
+            throw e;
+        }
+        if (response.statusCode() >= 500) {
+            breakers.failure(key);
+        } else {
+            breakers.success(key);
+        }
+        return response;
+    }
+
+    /**
+     * Opens the body of a response, inflated as it is read if the sensor
+     * compressed it
+     * @param response a response, its body not yet read
+     * @return the decoded body, closing it closes the response body
+     * @throws IOException if the encoding is not supported or the body is
+     *         not valid for it
+     */
+    static InputStream decodedBody (HttpResponse<InputStream> response)
+            throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding")
+                .orElse("").trim().toLowerCase(Locale.ROOT);
+        InputStream body = response.body();
+        if (encoding.length() == 0 || encoding.equals("identity")
+                || response.headers().firstValueAsLong("Content-Length").orElse(-1) == 0) {
+            return body;
+        }
+        try {
+            if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+                return new GZIPInputStream(body, INFLATE_BUFFER);
+            }
+            if (encoding.equals("deflate")) {
+                return inflate(body);
+            }
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+        body.close();
+        throw new IOException("Unsupported Content-Encoding [" +encoding+ "]");
+    }
+
+    /**
+     * @param response a response, its body not yet read
+     * @return the length of the decoded body, or -1 if it is compressed or
+     *         has no Content-Length
+     */
+    static long decodedLength (HttpResponse<?> response) {
+        String encoding = response.headers().firstValue("Content-Encoding")
+                .orElse("").trim();
+        if (encoding.length() > 0 && !encoding.equalsIgnoreCase("identity")) {
+            return -1;
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    /**
+     * deflate is zlib-wrapped by the standard, some servers send it raw, so
+     * the first two bytes decide
+     */
+    private static InputStream inflate (InputStream body) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(body, INFLATE_BUFFER);
+        in.mark(2);
+        int cmf = in.read();
+        int flg = in.read();
+        in.reset();
+        boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8
+                && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(in, new Inflater(!zlib), INFLATE_BUFFER) {
+            @Override
+            public void close () throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Completes the TCP and TLS handshake with a sensor ahead of time, so the
+     * connection is pooled and ready when the update phase starts
+     * @param sensorUrl the sensor protocol and IP part
+     * @return true if the sensor answered, otherwise false
+     */
+    static boolean prewarm (String sensorUrl) {
+        try {
+            HttpRequest request = newRequest(sensorUrl + "/")
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                    .header("User-Agent", EunUpdate.USER_AGENT)
+                    .build();
+            send(request).body().close();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Fails a body read when no data arrived for the read timeout. A
+     * watchdog task closes the stream, which wakes the blocked read.
+     */
+    private static class StallTimeoutInputStream extends FilterInputStream {
+        private final String key;
+
+        private final long timeoutNanos = readTimeout.toNanos();
+
+        private volatile long lastProgress = System.nanoTime();
+
+        private volatile boolean timedOut = false;
+
+        // guarded by this
+        private ScheduledFuture<?> check;
+        private boolean closed = false;
+
+        StallTimeoutInputStream (InputStream in, String key) {
+            super(in);
+            this.key = key;
+            schedule(timeoutNanos);
+        }
+
+        @Override
+        public int read () throws IOException {
+            try {
+                int b = in.read();
+                lastProgress = System.nanoTime();
+                return checkEnd(b);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            try {
+                int n = in.read(b, off, len);
+                lastProgress = System.nanoTime();
+                return checkEnd(n);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public synchronized void close () throws IOException {
+            closed = true;
+            if (check != null) {
+                check.cancel(false);
+            }
+            super.close();
+        }
+
+        private synchronized void schedule (long delayNanos) {
+            if (!closed) {
+                check = ClientHolder.watchdog.schedule(this::checkStall,
+                        delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void checkStall () {
+            long idle = System.nanoTime() - lastProgress;
+            if (idle < timeoutNanos) {
+                schedule(timeoutNanos - idle);
+                return;
+            }
+            timedOut = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+
+        // a stream closed by the watchdog may report a clean end
+        private int checkEnd (int n) throws IOException {
+            if (n < 0 && timedOut) {
+                throw failed(new EOFException());
+            }
+            return n;
+        }
+
+        private IOException failed (IOException e) {
+            breakers.failure(key);
+            if (timedOut) {
+                return new HttpTimeoutException("No response data for " +
+                        readTimeout.toSeconds() + " s");
+            }
+            return e;
+        }
+    }
+
+    /**
+     * The TCP and TLS handshake of one new connection
+     */
+    static class Handshake {
+        // from the creation of the engine to the end of its handshake
+        final long nanos;
+
+        // false if the TLS handshake failed
+        final boolean ok;
+
+        Handshake (long nanos, boolean ok) {
+            this.nanos = nanos;
+            this.ok = ok;
+        }
+    }
+
+    /**
+     * The SSLContext handed to the client, counts the engines it creates
+     */
+    private static class CountingContext extends SSLContext {
+        CountingContext (SSLContext delegate) {
+            super(new CountingContextSpi(delegate), delegate.getProvider(),
+                    delegate.getProtocol());
+        }
+    }
+
+    /**
+     * Delegates to an initialized context and counts the engines created
+     * for a host and port
+     */
+    private static class CountingContextSpi extends SSLContextSpi {
+        private final SSLContext delegate;
+
+        CountingContextSpi (SSLContext delegate) {
+            this.delegate = delegate;
+        }
+
+        protected void engineInit (KeyManager[] km, TrustManager[] tm,
+                SecureRandom random) {
+        }
+
+        protected SSLEngine engineCreateSSLEngine () {
+            return delegate.createSSLEngine();
+        }
+
+        protected SSLEngine engineCreateSSLEngine (String host, int port) {
+            connections.computeIfAbsent(host + ":" + port,
+                    k -> new LongAdder()).increment();
+            return new TimingEngine(delegate.createSSLEngine(host, port),
+                    host + ":" + port);
+        }
+
+        protected SSLSocketFactory engineGetSocketFactory () {
+            return delegate.getSocketFactory();
+        }
+
+        protected SSLServerSocketFactory engineGetServerSocketFactory () {
+            return delegate.getServerSocketFactory();
+        }
+
+        protected SSLSessionContext engineGetServerSessionContext () {
+            return delegate.getServerSessionContext();
+        }
+
+        protected SSLSessionContext engineGetClientSessionContext () {
+            return delegate.getClientSessionContext();
+        }
+
+        protected SSLParameters engineGetDefaultSSLParameters () {
+            return delegate.getDefaultSSLParameters();
+        }
+
+        protected SSLParameters engineGetSupportedSSLParameters () {
+            return delegate.getSupportedSSLParameters();
+        }
+    }
+
+    /**
+     * Delegates to the engine of a new connection and queues its handshake
+     * when a wrap or unwrap reports it finished or failed. The client
+     * creates the engine just before it connects, so the time includes the
+     * TCP handshake.
+     */
+    private static class TimingEngine extends SSLEngine {
+        private final SSLEngine delegate;
+        private final String hostKey;
+        private final long created = System.nanoTime();
+
+        // set once the handshake is queued
+        private volatile boolean ended = false;
+
+        TimingEngine (SSLEngine delegate, String hostKey) {
+            super(delegate.getPeerHost(), delegate.getPeerPort());
+            this.delegate = delegate;
+            this.hostKey = hostKey;
+        }
+
+        private void end (boolean ok) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            Queue<Handshake> queue = handshakes.computeIfAbsent(hostKey,
+                    k -> new ConcurrentLinkedQueue<Handshake>());
+            if (queue.size() < MAX_HANDSHAKES) {
+                queue.add(new Handshake(System.nanoTime() - created, ok));
+            }
+        }
+
+        private SSLEngineResult timed (SSLEngineResult result) {
+            if (result.getHandshakeStatus()
+                    == SSLEngineResult.HandshakeStatus.FINISHED) {
+                end(true);
+            }
+            return result;
+        }
+
+        public SSLEngineResult wrap (ByteBuffer[] srcs, int offset, int length,
+                ByteBuffer dst) throws SSLException {
+            try {
+                return timed(delegate.wrap(srcs, offset, length, dst));
+            } catch (SSLException e) {
+                end(false);
+                throw e;
+            }
+        }
+
+        public SSLEngineResult unwrap (ByteBuffer src, ByteBuffer[] dsts,
+                int offset, int length) throws SSLException {
+            try {
+                return timed(delegate.unwrap(src, dsts, offset, length));
+            } catch (SSLException e) {
+                end(false);
+                throw e;
+            }
+        }
+
+        public Runnable getDelegatedTask () {
+            return delegate.getDelegatedTask();
+        }
+
+        public void closeInbound () throws SSLException {
+            delegate.closeInbound();
+        }
+
+        public boolean isInboundDone () {
+            return delegate.isInboundDone();
+        }
+
+        public void closeOutbound () {
+            delegate.closeOutbound();
+        }
+
+        public boolean isOutboundDone () {
+            return delegate.isOutboundDone();
+        }
+
+        public String[] getSupportedCipherSuites () {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        public String[] getEnabledCipherSuites () {
+            return delegate.getEnabledCipherSuites();
+        }
+
+        public void setEnabledCipherSuites (String[] suites) {
+            delegate.setEnabledCipherSuites(suites);
+        }
+
+        public String[] getSupportedProtocols () {
+            return delegate.getSupportedProtocols();
+        }
+
+        public String[] getEnabledProtocols () {
+            return delegate.getEnabledProtocols();
+        }
+
+        public void setEnabledProtocols (String[] protocols) {
+            delegate.setEnabledProtocols(protocols);
+        }
+
+        public SSLSession getSession () {
+            return delegate.getSession();
+        }
+
+        public SSLSession getHandshakeSession () {
+            return delegate.getHandshakeSession();
+        }
+
+        public void beginHandshake () throws SSLException {
+            delegate.beginHandshake();
+        }
+
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus () {
+            return delegate.getHandshakeStatus();
+        }
+
+        public void setUseClientMode (boolean mode) {
+            delegate.setUseClientMode(mode);
+        }
+
+        public boolean getUseClientMode () {
+            return delegate.getUseClientMode();
+        }
+
+        public void setNeedClientAuth (boolean need) {
+            delegate.setNeedClientAuth(need);
+        }
+
+        public boolean getNeedClientAuth () {
+            return delegate.getNeedClientAuth();
+        }
+
+        public void setWantClientAuth (boolean want) {
+            delegate.setWantClientAuth(want);
+        }
+
+        public boolean getWantClientAuth () {
+            return delegate.getWantClientAuth();
+        }
+
+        public void setEnableSessionCreation (boolean flag) {
+            delegate.setEnableSessionCreation(flag);
+        }
+
+        public boolean getEnableSessionCreation () {
+            return delegate.getEnableSessionCreation();
+        }
+
+        public SSLParameters getSSLParameters () {
+            return delegate.getSSLParameters();
+        }
+
+        public void setSSLParameters (SSLParameters params) {
+            delegate.setSSLParameters(params);
+        }
+
+        public String getApplicationProtocol () {
+            return delegate.getApplicationProtocol();
+        }
+
+        public String getHandshakeApplicationProtocol () {
+            return delegate.getHandshakeApplicationProtocol();
+        }
+
+        public void setHandshakeApplicationProtocolSelector (
+                BiFunction<SSLEngine, List<String>, String> selector) {
+            delegate.setHandshakeApplicationProtocolSelector(selector);
+        }
+
+        public BiFunction<SSLEngine, List<String>, String>
+                getHandshakeApplicationProtocolSelector () {
+            return delegate.getHandshakeApplicationProtocolSelector();
+        }
+    }
+}
+
+//  **************  MYX509 TRUST MANAGER   ***************
+/**
+* This class performs trivial certificate checking - all certificates are accepted.
+* It is an X509ExtendedTrustManager so JSSE leaves the host name check to it
+* instead of adding one, HttpClient has no HostnameVerifier hook.
+*/
+class MyX509TrustManager extends X509ExtendedTrustManager
+{
+    /**
+    * Trust all clients
+    * @param chain the ceritficates to check
+    * @param str the response
+    */
+    public void checkClientTrusted (X509Certificate[] chain, String str)
+    {
+    }
+
+    /**
+    * trust all servers
+    * @param chain the ceritficates to check
+    * @param str the response
+    */
+    public void checkServerTrusted (X509Certificate[] chain, String str)
+    {
+    }
+
+    /**
+    * trust all clients, whatever the connection
+    */
+    public void checkClientTrusted (X509Certificate[] chain, String str,
+            java.net.Socket socket)
+    {
+    }
+
+    /**
+    * trust all servers, whatever the host name of the connection
+    */
+    public void checkServerTrusted (X509Certificate[] chain, String str,
+            java.net.Socket socket)
+    {
+    }
+
+    /**
+    * trust all clients, whatever the connection
+    */
+    public void checkClientTrusted (X509Certificate[] chain, String str,
+            SSLEngine engine)
+    {
+    }
+
+    /**
+    * trust all servers, whatever the host name of the connection
+    */
+    public void checkServerTrusted (X509Certificate[] chain, String str,
+            SSLEngine engine)
+    {
+    }
+
+    /**
+    * there are no accepted issuers
+    * @return null
+    */
+    public java.security.cert.X509Certificate[] getAcceptedIssuers ()
+    {
+        return null;
+    }
+}
@@ -0,0 +1,138 @@
+package eun.update;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * On-disk cache of sensor session cookies, keyed by sensor and user.
+ * A cached cookie lets a repeat run skip the login request. Entries older
+ * than the TTL are evicted when the cache is read, and an entry is dropped
+ * as soon as the sensor reports the session expired. The file is readable
+ * by the owner only, since a cookie grants the same access as the password.
+ */
+class SessionCache {
+    static final int DEFAULT_TTL_MINUTES = 30;
+
+    private final Path cacheFile;
+
+    private final long ttlMillis;
+
+    // key "sensorURL user", value "storedMillis cookie"
+    private Properties entries = new Properties();
+
+    // entries stored or dropped since the file was last written, null
+    // values are dropped ones
+    private final Map<String, String> changes = new HashMap<String, String>();
+
+    private long lastFlush = System.currentTimeMillis();
+
+    /**
+     * Opens the cache, dropping entries older than the TTL
+     * @param cacheFile the cache file, created on the first store, or null
+     *        to keep the cookies in memory only
+     * @param ttlMinutes how long a cookie is reused after login
+     */
+    SessionCache (Path cacheFile, int ttlMinutes) {
+        this.cacheFile = cacheFile;
+        this.ttlMillis = ttlMinutes * 60000L;
+        if (cacheFile != null) {
+            CacheFiles.load(cacheFile, entries);
+        }
+        evictExpired();
+    }
+
+    /**
+     * @return the cache file in the user's home directory
+     */
+    static Path defaultFile () {
+        return CacheFiles.defaultFile("sessions.properties");
+    }
+
+    /**
+     * @param sensorUrl the sensor protocol and IP part
+     * @param user the sensor username
+     * @return the cached cookie, or null if there is no valid entry
+     */
+    synchronized String lookup (String sensorUrl, String user) {
+        String value = entries.getProperty(key(sensorUrl, user));
+        if (value == null || isExpired(value)) {
+            return null;
+        }
+        return value.substring(value.indexOf(' ') + 1);
+    }
+
+    /**
+     * Saves the cookie of a new login
+     * @param sensorUrl the sensor protocol and IP part
+     * @param user the sensor username
+     * @param cookie the session cookie
+     */
+    synchronized void store (String sensorUrl, String user, String cookie) {
+        String key = key(sensorUrl, user);
+        String value = System.currentTimeMillis() + " " + cookie;
+        entries.setProperty(key, value);
+        changes.put(key, value);
+        saveIfDue();
+    }
+
+    /**
+     * Drops the cookie of a session the sensor no longer accepts
+     * @param sensorUrl the sensor protocol and IP part
+     * @param user the sensor username
+     */
+    synchronized void invalidate (String sensorUrl, String user) {
+        String key = key(sensorUrl, user);
+        if (entries.remove(key) != null) {
+            changes.put(key, null);
+            saveIfDue();
+        }
+    }
+
+    /**
+     * Merges the stored and dropped cookies into the file, keeping the
+     * cookies other runs wrote since it was read and dropping expired ones.
+     * Called when enough entries changed and at the end of the run.
+     */
+    synchronized void flush () {
+        if (cacheFile == null || changes.isEmpty()) {
+            changes.clear();
+            return;
+        }
+        try {
+            entries = CacheFiles.merge(cacheFile, changes, this::isExpired,
+                    "EunUpdate session cache");
+        } catch (IOException e) {
+            System.out.println("Unable to save session cache [" +e.getMessage()+ "]");
+        }
+        changes.clear();
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private static String key (String sensorUrl, String user) {
+        return sensorUrl + " " + user;
+    }
+
+    private boolean isExpired (String value) {
+        try {
+            long stored = Long.parseLong(value.substring(0, value.indexOf(' ')));
+            return System.currentTimeMillis() - stored > ttlMillis;
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Drops expired entries from memory, the file loses them on the next
+     * flush
+     */
+    private synchronized void evictExpired () {
+        entries.values().removeIf(value -> isExpired((String) value));
+    }
+
+    private void saveIfDue () {
+        if (CacheFiles.isDue(changes.size(), entries.size(), lastFlush)) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package eun.update;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the sensor rejects the session cookie of a request, so the
+ * caller can log in again instead of failing the run
+ */
+class SessionExpiredException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    // the HTTP status code, or -1 if the sensor answered with a page
+    final int status;
+
+    SessionExpiredException (int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
@@ -0,0 +1,437 @@
+package eun.update;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Splits a fleet rollout between several worker processes, on one machine
+ * or many, through a directory they all share.
+ * Each sensor belongs to one of a fixed number of shards, by the hash of its
+ * URL. A worker claims a shard by creating its lease file, runs the shard's
+ * sensors through FleetUpdate, and marks the shard done. Workers register
+ * in the directory and shards are matched to the live workers by consistent
+ * hashing, so each worker first claims the shards that hash to it, and
+ * adding a worker moves only its share of the shards. A worker then takes
+ * any shard still unclaimed, so a fast worker helps a slow one.
+ * Leases and registrations are kept alive by a heartbeat. A lease whose
+ * owner stopped heartbeating is taken over by another worker, and every
+ * worker keeps going until all shards are done. The lease is replaced in
+ * place only after a second staleness check, so an owner that touched it
+ * meanwhile keeps it. An owner that stalled past the TTL and lost its lease
+ * stops starting sensors of the shard and leaves it to the new owner, only
+ * the sensors it had in flight may be sent twice.
+ */
+class ShardCoordinator {
+    static final int DEFAULT_SHARDS = 64;
+
+    // a lease or registration not touched for this long is dead
+    static final long LEASE_TTL_MILLIS = 30000;
+
+    static final long HEARTBEAT_MILLIS = 5000;
+
+    // how often a worker with nothing to claim looks again
+    static final long POLL_MILLIS = 1000;
+
+    // points of each worker on the hash ring
+    private static final int VIRTUAL_NODES = 32;
+
+    private static final String ROLLOUT_FILE = "rollout";
+
+    private static final String WORKERS_DIR = "workers";
+
+    private final Path leaseDir;
+
+    private final int shards;
+
+    private final String workerId;
+
+    private final FleetUpdate fleet;
+
+    // the lease the heartbeat keeps alive, null between shards
+    private volatile Path currentLease;
+
+    // set by the heartbeat when another worker took over the current lease
+    private volatile boolean leaseLost;
+
+    /**
+     * @param leaseDir the directory shared by the workers of this rollout
+     * @param shards number of shards, the same for every worker
+     * @param workerId unique name of this worker
+     * @param fleet runs the sensors of each shard
+     */
+    ShardCoordinator (Path leaseDir, int shards, String workerId,
+            FleetUpdate fleet) {
+        this.leaseDir = leaseDir;
+        this.shards = shards;
+        this.workerId = workerId;
+        this.fleet = fleet;
+    }
+
+    /**
+     * @return a worker name unique on the network, host and process id
+     */
+    static String defaultWorkerId () {
+        String host = System.getenv("HOSTNAME");
+        if (host == null || host.length() == 0) {
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "localhost";
+            }
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    /**
+     * @param sensorUrl the sensor protocol and IP part
+     * @param shards number of shards
+     * @return the shard of the sensor, the same in every JVM
+     */
+    static int shardOf (String sensorUrl, int shards) {
+        return (int) Math.floorMod(hash(sensorUrl), (long) shards);
+    }
+
+    /**
+     * Claims and runs shards until every shard of the rollout is done
+     * @param sensors the whole inventory, the same for every worker
+     * @param rolloutKey identifies the rollout, a directory used by a
+     *        different rollout is refused
+     * @return the results of the sensors this worker ran
+     * @throws IOException if the lease directory can't be used
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    List<FleetUpdate.SensorResult> run (List<FleetUpdate.SensorEntry> sensors,
+            String rolloutKey) throws IOException, InterruptedException {
+        Files.createDirectories(leaseDir.resolve(WORKERS_DIR));
+        checkRollout(rolloutKey);
+
+        Map<Integer, List<FleetUpdate.SensorEntry>> shardSensors =
+                new TreeMap<Integer, List<FleetUpdate.SensorEntry>>();
+        for (FleetUpdate.SensorEntry sensor : sensors) {
+            shardSensors.computeIfAbsent(shardOf(sensor.sensorUrl, shards),
+                    k -> new ArrayList<FleetUpdate.SensorEntry>()).add(sensor);
+        }
+
+        Path registration = leaseDir.resolve(WORKERS_DIR).resolve(workerId);
+        Files.write(registration, workerId.getBytes(StandardCharsets.UTF_8));
+        ScheduledExecutorService heartbeat =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "eun-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(() -> beat(registration),
+                HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+        List<FleetUpdate.SensorResult> results =
+                new ArrayList<FleetUpdate.SensorResult>();
+        List<Integer> ran = new ArrayList<Integer>();
+        try {
+            while (true) {
+                leaseLost = false;
+                fleet.stopped = false;
+                Integer shard = claim(shardSensors.keySet());
+                if (shard == null) {
+                    if (allDone(shardSensors.keySet())) {
+                        break;
+                    }
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                List<FleetUpdate.SensorEntry> shardList = shardSensors.get(shard);
+                System.out.println("Worker " +workerId+ " running shard " +shard+
+                        ", " +shardList.size()+ " sensors");
+                List<FleetUpdate.SensorResult> shardResults = fleet.run(shardList);
+                results.addAll(shardResults);
+                if (leaseLost) {
+                    // the new owner runs the rest and marks the shard done
+                    System.out.println("Worker " +workerId+ " lost shard " +shard+
+                            " after " +shardResults.size()+ " of " +
+                            shardList.size()+ " sensors");
+                    continue;
+                }
+                finish(shard, shardResults);
+                ran.add(shard);
+            }
+        } finally {
+            heartbeat.shutdownNow();
+            Files.deleteIfExists(registration);
+        }
+        System.out.println("Worker " +workerId+ " ran " +ran.size()+ " of " +
+                shardSensors.size()+ " shards " + ran);
+        return results;
+    }
+
+    /**
+     * Records the rollout in a new directory, or checks that an existing
+     * directory is for the same rollout
+     */
+    private void checkRollout (String rolloutKey) throws IOException {
+        Path file = leaseDir.resolve(ROLLOUT_FILE);
+        String key = rolloutKey + " " + shards;
+        try {
+            Files.write(file, key.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            return;
+        } catch (FileAlreadyExistsException e) {
+        }
+        String existing = "";
+        // a worker that just created the file may still be writing it
+        for (int attempt = 0; attempt < 10 && existing.length() == 0; attempt++) {
+            existing = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            if (existing.length() == 0) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (!existing.equals(key)) {
+            throw new IOException("Lease directory " +leaseDir+ " belongs to a different rollout");
+        }
+    }
+
+    /**
+     * Claims the next shard: an unclaimed shard that hashes to this worker,
+     * then any unclaimed shard, then a shard whose owner died
+     * @param candidates the shards that have sensors
+     * @return the claimed shard, or null if none is claimable now
+     */
+    private Integer claim (Set<Integer> candidates) throws IOException {
+        TreeMap<Long, String> ring = ring();
+        List<Integer> mine = new ArrayList<Integer>();
+        List<Integer> others = new ArrayList<Integer>();
+        List<Integer> expired = new ArrayList<Integer>();
+        long now = System.currentTimeMillis();
+        for (int shard : candidates) {
+            if (Files.exists(doneFile(shard))) {
+                continue;
+            }
+            Path lease = leaseFile(shard);
+            FileTime touched = lastModified(lease);
+            if (touched == null) {
+                (workerId.equals(owner(ring, shard)) ? mine : others).add(shard);
+            } else if (now - touched.toMillis() > LEASE_TTL_MILLIS) {
+                expired.add(shard);
+            }
+        }
+        for (int shard : mine) {
+            if (createLease(shard)) {
+                return shard;
+            }
+        }
+        for (int shard : others) {
+            if (createLease(shard)) {
+                return shard;
+            }
+        }
+        for (int shard : expired) {
+            if (takeOver(shard)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    private boolean createLease (int shard) throws IOException {
+        try {
+            Files.write(leaseFile(shard), workerId.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        // done by a worker between the scan and the claim
+        if (Files.exists(doneFile(shard))) {
+            Files.deleteIfExists(leaseFile(shard));
+            return false;
+        }
+        currentLease = leaseFile(shard);
+        return true;
+    }
+
+    /**
+     * Takes over a dead worker's lease. The workers racing for it create a
+     * takeover marker, which only one of them can do. The winner checks
+     * again that the lease is stale, since its owner may have touched it
+     * after the scan, and then replaces it with one atomic move, so the
+     * lease never disappears and no other worker can create it meanwhile.
+     */
+    private boolean takeOver (int shard) throws IOException {
+        Path lease = leaseFile(shard);
+        Path marker = leaseDir.resolve(lease.getFileName() + ".takeover");
+        FileTime marked = lastModified(marker);
+        if (marked != null
+                && System.currentTimeMillis() - marked.toMillis() > LEASE_TTL_MILLIS) {
+            // left by a worker that died while taking over
+            Files.deleteIfExists(marker);
+        }
+        try {
+            Files.write(marker, workerId.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+        try {
+            String previous;
+            try {
+                previous = new String(Files.readAllBytes(lease), StandardCharsets.UTF_8);
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            FileTime touched = lastModified(lease);
+            if (touched == null || System.currentTimeMillis() - touched.toMillis()
+                    <= LEASE_TTL_MILLIS || Files.exists(doneFile(shard))) {
+                // the owner is alive after all, or finished the shard
+                return false;
+            }
+            Path temp = leaseDir.resolve(lease.getFileName() + "." + workerId + ".tmp");
+            Files.write(temp, workerId.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, lease, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            currentLease = lease;
+            SensorLog.warn(null, null, null, "Took over shard", "shard", shard,
+                    "worker", workerId, "previousWorker", previous);
+            System.out.println("Worker " +workerId+ " took over shard " +shard+
+                    " from " + previous);
+            return true;
+        } finally {
+            Files.deleteIfExists(marker);
+        }
+    }
+
+    /**
+     * Marks a shard done, then releases its lease
+     */
+    private void finish (int shard, List<FleetUpdate.SensorResult> results)
+            throws IOException {
+        int failed = 0;
+        for (FleetUpdate.SensorResult result : results) {
+            if (!result.ok) {
+                ++failed;
+            }
+        }
+        Path done = doneFile(shard);
+        Path temp = leaseDir.resolve(done.getFileName() + "." + workerId + ".tmp");
+        Files.write(temp, (workerId + " " + results.size() + " sensors " +
+                failed + " failed\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, done, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        currentLease = null;
+        Path lease = leaseFile(shard);
+        if (isOwn(lease)) {
+            Files.deleteIfExists(lease);
+        }
+    }
+
+    private boolean allDone (Set<Integer> candidates) {
+        for (int shard : candidates) {
+            if (!Files.exists(doneFile(shard))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Touches the registration of this worker and the lease it holds
+     */
+    private void beat (Path registration) {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        try {
+            Files.setLastModifiedTime(registration, now);
+        } catch (IOException e) {
+            try {
+                Files.write(registration, workerId.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e2) {
+                SensorLog.warn(null, null, null, "Unable to register worker",
+                        "worker", workerId, "error", e2.toString());
+            }
+        }
+        Path lease = currentLease;
+        if (lease == null) {
+            return;
+        }
+        try {
+            if (isOwn(lease)) {
+                Files.setLastModifiedTime(lease, now);
+                return;
+            }
+        } catch (IOException e) {
+        }
+        // the sensors in flight finish, no new ones start
+        SensorLog.warn(null, null, null, "Lease lost", "lease",
+                lease.getFileName(), "worker", workerId);
+        currentLease = null;
+        leaseLost = true;
+        fleet.stopped = true;
+    }
+
+    private boolean isOwn (Path lease) {
+        try {
+            return workerId.equals(new String(Files.readAllBytes(lease),
+                    StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the hash ring of the live workers, this one included
+     */
+    private TreeMap<Long, String> ring () throws IOException {
+        Set<String> workers = new TreeSet<String>();
+        workers.add(workerId);
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files =
+                Files.newDirectoryStream(leaseDir.resolve(WORKERS_DIR))) {
+            for (Path file : files) {
+                FileTime touched = lastModified(file);
+                if (touched != null && now - touched.toMillis() <= LEASE_TTL_MILLIS) {
+                    workers.add(file.getFileName().toString());
+                }
+            }
+        }
+        TreeMap<Long, String> ring = new TreeMap<Long, String>();
+        for (String worker : workers) {
+            for (int n = 0; n < VIRTUAL_NODES; n++) {
+                ring.put(hash(worker + "#" + n), worker);
+            }
+        }
+        return ring;
+    }
+
+    private static String owner (TreeMap<Long, String> ring, int shard) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash("shard-" + shard));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    private static FileTime lastModified (Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Path leaseFile (int shard) {
+        return leaseDir.resolve("shard-" + shard + ".lease");
+    }
+
+    private Path doneFile (int shard) {
+        return leaseDir.resolve("shard-" + shard + ".done");
+    }
+
+    /**
+     * @return the first 8 bytes of the SHA-256 of the text
+     */
+    private static long hash (String text) {
+        return Long.parseUnsignedLong(RecordCache.hash(text).substring(0, 16), 16);
+    }
+}
@@ -0,0 +1,238 @@
+package eun.update;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.*;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A compressed snapshot of the EUN records of many sensors, as a zip file.
+ * Each record is an entry named after its sensor and EUN type, with the
+ * image replaced by a reference to a blob entry named after the SHA-256 of
+ * the image. Sensors mostly share the same few images, so each image is
+ * stored once however many records use it.
+ * Records are added as they are fetched, from many threads, and the file is
+ * moved into place when the snapshot is closed. A restore reads the entries
+ * it needs through the zip directory, one record at a time, and checks each
+ * image against its hash before it is sent to a sensor.
+ */
+class SnapshotArchive implements Closeable {
+    // the record field stored as a blob
+    static final String BLOB_FIELD = ImageFile.FIELD;
+
+    // images kept in memory during a restore, shared by the sensors
+    static final long BLOB_CACHE_BYTES = 64L * 1024 * 1024;
+
+    private static final String RECORDS = "records/";
+
+    private static final String BLOBS = "blobs/";
+
+    private final Path file;
+
+    // writing: the partial snapshot, moved to file on close
+    private final Path tempFile;
+    private final ZipOutputStream out;
+
+    // reading
+    private final ZipFile zip;
+
+    // writing: blob hashes already written, guarded by this
+    private final Set<String> blobs = new HashSet<String>();
+
+    // reading: blob hash to the raw image value, guarded by this
+    private final Map<String, byte[]> blobCache = new HashMap<String, byte[]>();
+    private long cachedBytes = 0;
+
+    // guarded by this
+    private int records = 0;
+    private int references = 0;
+
+    private SnapshotArchive (Path file, Path tempFile, ZipOutputStream out,
+            ZipFile zip) {
+        this.file = file;
+        this.tempFile = tempFile;
+        this.out = out;
+        this.zip = zip;
+    }
+
+    /**
+     * Starts a new snapshot, an existing file is replaced on close
+     * @param file the snapshot file
+     * @return the snapshot, to add records to
+     * @throws IOException if the file can't be created
+     */
+    static SnapshotArchive create (Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(tempFile)));
+        return new SnapshotArchive(file, tempFile, out, null);
+    }
+
+    /**
+     * Opens a snapshot to restore from
+     * @param file the snapshot file
+     * @return the snapshot, to read records from
+     * @throws IOException if the file is not a readable zip file
+     */
+    static SnapshotArchive open (Path file) throws IOException {
+        return new SnapshotArchive(file, null, null, new ZipFile(file.toFile()));
+    }
+
+    /**
+     * Adds a fetched record. The image is hashed and written only if no
+     * earlier record had the same image.
+     * @param sensorUrl the sensor protocol and IP part
+     * @param eunType the EUN type name
+     * @param response the raw record
+     * @throws IOException if the record is not a JSON object or the write
+     *         fails
+     */
+    void add (String sensorUrl, String eunType, ResponseBuffer response)
+            throws IOException {
+        EunRecord record = EunRecord.parse(response);
+        byte[] data = record.array();
+        int[] span = record.valueSpan(BLOB_FIELD);
+        String hash = null;
+        if (span != null && data[span[0]] == '"') {
+            hash = RecordCache.hash(data, span[0], span[1] - span[0]);
+        }
+        synchronized (this) {
+            if (hash != null && blobs.add(hash)) {
+                out.putNextEntry(new ZipEntry(BLOBS + hash));
+                out.write(data, span[0], span[1] - span[0]);
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry(recordEntry(sensorUrl, eunType)));
+            if (hash != null) {
+                out.write(data, 0, span[0]);
+                out.write(("{\"blob\":\"" +hash+ "\"}").getBytes(StandardCharsets.US_ASCII));
+                out.write(data, span[1], record.length() - span[1]);
+                ++references;
+            } else {
+                record.writeTo(out);
+            }
+            out.closeEntry();
+            ++records;
+        }
+    }
+
+    /**
+     * Reads a record back with its image in place
+     * @param sensorUrl the sensor protocol and IP part
+     * @param eunType the EUN type name
+     * @return the parts of the record as it was fetched, or null if the
+     *         snapshot has no such record
+     * @throws IOException if the record or its image can't be read
+     */
+    List<ByteBuffer> record (String sensorUrl, String eunType)
+            throws IOException {
+        ZipEntry entry = zip.getEntry(recordEntry(sensorUrl, eunType));
+        if (entry == null) {
+            return null;
+        }
+        ResponseBuffer response = new ResponseBuffer();
+        try (InputStream in = zip.getInputStream(entry)) {
+            response.readFrom(in, entry.getSize());
+        }
+        EunRecord record = EunRecord.parse(response);
+        int[] span = record.valueSpan(BLOB_FIELD);
+        if (span == null || record.array()[span[0]] != '{') {
+            return Collections.singletonList(
+                    ByteBuffer.wrap(record.array(), 0, record.length()));
+        }
+        String reference = new String(record.array(), span[0],
+                span[1] - span[0], StandardCharsets.UTF_8);
+        String hash;
+        try {
+            hash = new JSONObject(reference).getString("blob");
+        } catch (JSONException e) {
+            throw new IOException("Invalid image reference in snapshot", e);
+        }
+        return record.spliceField(BLOB_FIELD, blob(hash));
+    }
+
+    /**
+     * @param hash the blob hash
+     * @return the raw image value, from the cache if it was read before
+     * @throws IOException if the snapshot has no such blob, or its content
+     *         does not match the hash
+     */
+    private byte[] blob (String hash) throws IOException {
+        synchronized (this) {
+            byte[] value = blobCache.get(hash);
+            if (value != null) {
+                return value;
+            }
+        }
+        ZipEntry entry = zip.getEntry(BLOBS + hash);
+        if (entry == null) {
+            throw new IOException("Snapshot has no image " + hash);
+        }
+        // hashed as it is read, a corrupted or edited image is never sent
+        MessageDigest md = RecordCache.sha256();
+        byte[] value;
+        try (InputStream in = new DigestInputStream(zip.getInputStream(entry), md)) {
+            long size = entry.getSize();
+            if (size >= 0 && size <= Integer.MAX_VALUE - 8) {
+                value = in.readNBytes((int) size);
+                if (value.length < size || in.read() >= 0) {
+                    throw new IOException("Image " +hash+ " in snapshot has the wrong size");
+                }
+            } else {
+                value = in.readAllBytes();
+            }
+        }
+        if (!RecordCache.toHex(md.digest()).equals(hash)) {
+            throw new IOException("Image " +hash+ " in snapshot does not match its hash");
+        }
+        synchronized (this) {
+            if (cachedBytes + value.length <= BLOB_CACHE_BYTES
+                    && blobCache.put(hash, value) == null) {
+                cachedBytes += value.length;
+            }
+        }
+        return value;
+    }
+
+    private static String recordEntry (String sensorUrl, String eunType) {
+        return RECORDS + URLEncoder.encode(sensorUrl, StandardCharsets.UTF_8)
+                + "/" + eunType + ".json";
+    }
+
+    /**
+     * @return the number of records and images written
+     */
+    synchronized String summary () {
+        String size = "";
+        try {
+            size = ", " + Files.size(file) / 1024 + " KB";
+        } catch (IOException e) {
+        }
+        return "Snapshot " +file+ ": " +records+ " records, " +blobs.size()+
+                " images stored for " +references+ " references" + size;
+    }
+
+    /**
+     * Finishes a new snapshot and moves it into place, or closes a snapshot
+     * opened for restore
+     * @throws IOException if the snapshot can't be written
+     */
+    @Override
+    public synchronized void close () throws IOException {
+        if (zip != null) {
+            zip.close();
+            return;
+        }
+        out.close();
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
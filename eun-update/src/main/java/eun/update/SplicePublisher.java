@@ -0,0 +1,115 @@
+package eun.update;
+
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request body made of ByteBuffer views over existing arrays.
+ * HttpRequest.BodyPublishers.ofByteArray copies its content into new
+ * buffers before sending. This publisher hands out read-only views of the
+ * original arrays instead, so an update body spliced from the fetched
+ * record never copies the image blob. Each subscription gets fresh views,
+ * so the body can be sent again on a retry.
+ */
+class SplicePublisher implements HttpRequest.BodyPublisher {
+    // larger parts are sent as several views of at most this size
+    private static final int MAX_VIEW = 64 * 1024;
+
+    private final List<ByteBuffer> parts;
+
+    private final long length;
+
+    /**
+     * @param parts the body in order, their position to limit is sent
+     */
+    SplicePublisher (List<ByteBuffer> parts) {
+        List<ByteBuffer> views = new ArrayList<ByteBuffer>();
+        long total = 0;
+        for (ByteBuffer part : parts) {
+            ByteBuffer view = part.asReadOnlyBuffer();
+            total += view.remaining();
+            while (view.remaining() > MAX_VIEW) {
+                views.add(view.slice(view.position(), MAX_VIEW));
+                view.position(view.position() + MAX_VIEW);
+            }
+            if (view.hasRemaining()) {
+                views.add(view.slice());
+            }
+        }
+        this.parts = views;
+        this.length = total;
+    }
+
+    @Override
+    public long contentLength () {
+        return length;
+    }
+
+    @Override
+    public void subscribe (Flow.Subscriber<? super ByteBuffer> subscriber) {
+        subscriber.onSubscribe(new Subscription(subscriber));
+    }
+
+    /**
+     * Emits the views as they are requested. onNext may call request again,
+     * so only the outermost call emits.
+     */
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        private int next = 0;
+
+        private volatile boolean done = false;
+
+        Subscription (Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request (long n) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                done = true;
+                subscriber.onError(new IllegalArgumentException(
+                        "non-positive request " + n));
+                return;
+            }
+            // only the caller that raised demand from zero emits
+            if (demand.getAndAccumulate(n,
+                    (d, add) -> d + add < 0 ? Long.MAX_VALUE : d + add) != 0) {
+                return;
+            }
+            while (true) {
+                long requested = demand.get();
+                long emitted = 0;
+                while (emitted < requested && next < parts.size() && !done) {
+                    subscriber.onNext(parts.get(next++).duplicate());
+                    ++emitted;
+                }
+                if (done) {
+                    return;
+                }
+                if (next == parts.size()) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                if (demand.addAndGet(-emitted) == 0) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void cancel () {
+            done = true;
+        }
+    }
+}
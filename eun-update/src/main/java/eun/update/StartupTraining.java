@@ -0,0 +1,40 @@
+package eun.update;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Training run for the AppCDS archive built by the appcds profile.
+ * Runs a login, fetch and update and a fetch of every EUN type against an
+ * in-process SensorSimulator, so the archive holds the classes of a real
+ * run: TLS, the HTTP client, the record parser and org.json. The caches and
+ * journal go to a temporary directory, not the user's home.
+ */
+public class StartupTraining {
+    public static void main (String[] args) throws Exception {
+        Path home = Files.createTempDirectory("euntraining");
+        System.setProperty("user.home", home.toString());
+        SensorSimulator simulator = new SensorSimulator();
+        simulator.port = 0;
+        simulator.start();
+        try {
+            Path message = home.resolve("message.txt");
+            Files.write(message, "Access to this page is <b>blocked</b>."
+                    .getBytes(StandardCharsets.UTF_8));
+            String sensorUrl = "https://127.0.0.1:" + simulator.port();
+            EunUpdate.main(new String[] {sensorUrl, "Application",
+                    "-u", "cisco/cisco", "-m", message.toString(),
+                    "--metrics-json", home.resolve("metrics.json").toString()});
+            EunUpdate.main(new String[] {sensorUrl, "all",
+                    "-u", "cisco/cisco"});
+        } finally {
+            simulator.stop();
+            try (Stream<Path> files = Files.walk(home)) {
+                files.sorted(Comparator.reverseOrder())
+                        .forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+}
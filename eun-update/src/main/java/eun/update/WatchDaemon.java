@@ -0,0 +1,427 @@
+package eun.update;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps running and pushes every change of a message file to its sensors,
+ * so an edit does not pay for a JVM start, the TLS setup and a login again.
+ * Each subdirectory of the watch directory is a sensor group. Its
+ * sensors.txt is the group inventory, in the -f format, and a message file
+ * named after an EUN type, such as Application.txt, holds the message of that
+ * type for the group. Rapid edits of a file are merged into one push once the
+ * file has been quiet for the debounce time. Every sensor of a push gets
+ * the content read and hashed once at its start, whatever later edits do.
+ * Pushes run one at a time on their own thread, so a slow fleet does not
+ * hold up change detection or keep-warm. Sessions are shared across pushes
+ * through the session cache, and every sensor is touched between pushes so
+ * its pooled connection stays open.
+ */
+class WatchDaemon {
+    static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+
+    // below the idle timeout of pooled HttpClient connections
+    static final long KEEP_WARM_MILLIS = 20000;
+
+    static final String INVENTORY_FILE = "sensors.txt";
+
+    static final String MESSAGE_SUFFIX = ".txt";
+
+    private final Path watchDir;
+
+    // properties file of credName=user/passwd, may be null
+    private final String credentialFile;
+
+    // used for inventory lines without credentials
+    private final String user;
+    private final String password;
+
+    private final boolean verbose;
+
+    // maximum number of sensors processed at the same time
+    private final int concurrency;
+
+    // shared by all pushes, null if disabled
+    private final SessionCache sessionCache;
+
+    // last-known record hashes, null if not tracked
+    RecordCache recordCache;
+
+    // fetch and compare only, never update
+    boolean verifyOnly = false;
+
+    // per-phase latencies of all pushes, null if not recorded
+    LatencyMetrics metrics;
+
+    // paces the requests of all pushes, null if not paced
+    RequestScheduler scheduler;
+
+    // outcome of each update, null if not journaled
+    RolloutJournal journal;
+
+    // how failed requests are sent again
+    RetryPolicy retryPolicy = new RetryPolicy(RetryPolicy.DEFAULT_RETRIES);
+
+    // rewritten after each push, may be null
+    String metricsJsonFile;
+    String metricsPromFile;
+
+    // how long a message file must be quiet before it is pushed
+    long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+
+    // group directory to its sensors, read by the push thread
+    private final Map<Path, List<FleetUpdate.SensorEntry>> groups =
+            new ConcurrentHashMap<Path, List<FleetUpdate.SensorEntry>>();
+
+    // message file to the time of its last change
+    private final Map<Path, Long> pending = new LinkedHashMap<Path, Long>();
+
+    // message file to the hash of the message last pushed to every sensor,
+    // used by the push thread only
+    private final Map<Path, String> pushed = new HashMap<Path, String>();
+
+    // message files pushed again at the next keep-warm round, guarded by
+    // itself
+    private final Set<Path> retry = new LinkedHashSet<Path>();
+
+    // runs the pushes one at a time, off the watch loop
+    private final ExecutorService pusher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "eun-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // set while a push runs, its own requests keep the connections open
+    private volatile boolean pushing = false;
+
+    /**
+     * @param watchDir the directory of sensor groups
+     * @param credentialFile properties file of credName=user/passwd, may be null
+     * @param user used for inventory lines without credentials
+     * @param password used for inventory lines without credentials
+     * @param verbose enable debug messages
+     * @param concurrency maximum number of sensors in flight
+     * @param sessionCache cached session cookies, may be null
+     */
+    WatchDaemon (Path watchDir, String credentialFile, String user,
+            String password, boolean verbose, int concurrency,
+            SessionCache sessionCache) {
+        this.watchDir = watchDir;
+        this.credentialFile = credentialFile;
+        this.user = user;
+        this.password = password;
+        this.verbose = verbose;
+        this.concurrency = concurrency;
+        this.sessionCache = sessionCache;
+    }
+
+    /**
+     * Pushes the current message files and then every change, until the
+     * process is stopped
+     * @throws IOException if the watch directory can't be watched
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    void run () throws IOException, InterruptedException {
+        try (WatchService watcher = watchDir.getFileSystem().newWatchService()) {
+            watchDir.register(watcher, ENTRY_CREATE);
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(watchDir)) {
+                for (Path dir : dirs) {
+                    if (Files.isDirectory(dir)) {
+                        addGroup(dir, watcher);
+                    }
+                }
+            }
+            System.out.println("Watching " +watchDir+ ", " +groups.size()+
+                    " sensor groups");
+
+            long nextKeepWarm = System.currentTimeMillis() + KEEP_WARM_MILLIS;
+            while (true) {
+                long now = System.currentTimeMillis();
+                long wake = nextKeepWarm;
+                for (long changed : pending.values()) {
+                    wake = Math.min(wake, changed + debounceMillis);
+                }
+                WatchKey key = watcher.poll(Math.max(wake - now, 1),
+                        TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key, watcher);
+                    key = watcher.poll();
+                }
+
+                now = System.currentTimeMillis();
+                List<Path> due = new ArrayList<Path>();
+                for (Map.Entry<Path, Long> entry : pending.entrySet()) {
+                    if (now - entry.getValue() >= debounceMillis) {
+                        due.add(entry.getKey());
+                    }
+                }
+                for (Path file : due) {
+                    pending.remove(file);
+                    pusher.execute(() -> push(file));
+                }
+
+                if (System.currentTimeMillis() >= nextKeepWarm) {
+                    keepWarm();
+                    nextKeepWarm = System.currentTimeMillis() + KEEP_WARM_MILLIS;
+                }
+            }
+        }
+    }
+
+    /**
+     * Turns the events of one watched directory into group and message
+     * changes
+     * @param key the signalled key
+     * @param watcher the watch service, to register new groups
+     */
+    private void handleEvents (WatchKey key, WatchService watcher) {
+        Path dir = (Path) key.watchable();
+        long now = System.currentTimeMillis();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // events were lost, check every message file again
+                for (Path group : groups.keySet()) {
+                    addMessageFiles(group, now);
+                }
+                continue;
+            }
+            Path file = dir.resolve((Path) event.context());
+            if (dir.equals(watchDir)) {
+                if (Files.isDirectory(file) && !groups.containsKey(file)) {
+                    addGroup(file, watcher);
+                }
+            } else if (INVENTORY_FILE.equals(file.getFileName().toString())) {
+                loadGroup(dir);
+            } else if (messageType(file) != null) {
+                pending.put(file, now);
+            }
+        }
+        if (!key.reset() && !dir.equals(watchDir)) {
+            System.out.println("Sensor group " +dir.getFileName()+ " removed");
+            groups.remove(dir);
+        }
+    }
+
+    /**
+     * Starts watching a group directory, loads its inventory and queues its
+     * message files
+     * @param dir the group directory
+     * @param watcher the watch service
+     */
+    private void addGroup (Path dir, WatchService watcher) {
+        try {
+            dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.out.println("Unable to watch " +dir+ " [" +e.getMessage()+ "]");
+            return;
+        }
+        loadGroup(dir);
+        addMessageFiles(dir, System.currentTimeMillis());
+    }
+
+    /**
+     * Queues every message file of a group
+     * @param dir the group directory
+     * @param now the change time to queue them with
+     */
+    private void addMessageFiles (Path dir, long now) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (messageType(file) != null) {
+                    pending.put(file, now);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to list " +dir+ " [" +e.getMessage()+ "]");
+        }
+    }
+
+    /**
+     * Reads the inventory of a group and connects to its sensors. A group
+     * keeps its sensors if the new inventory can't be read.
+     * @param dir the group directory
+     */
+    private void loadGroup (Path dir) {
+        Path inventory = dir.resolve(INVENTORY_FILE);
+        if (!Files.exists(inventory)) {
+            System.out.println("Sensor group " +dir.getFileName()+ " has no " +
+                    INVENTORY_FILE);
+            groups.putIfAbsent(dir, new ArrayList<FleetUpdate.SensorEntry>());
+            return;
+        }
+        List<FleetUpdate.SensorEntry> sensors;
+        try {
+            sensors = FleetUpdate.readInventory(inventory.toString(),
+                    credentialFile, user, password);
+        } catch (IOException e) {
+            System.out.println("Unable to read inventory of group " +
+                    dir.getFileName()+ " [" +e.getMessage()+ "]");
+            return;
+        }
+        groups.put(dir, sensors);
+        int warm = newFleet(null, "").prewarmAll(sensors,
+                new Semaphore(concurrency));
+        System.out.println("Sensor group " +dir.getFileName()+ ", " +warm+
+                " of " +sensors.size()+ " sensors connected");
+    }
+
+    /**
+     * Pushes a message file to the sensors of its group, unless it is the
+     * message already pushed. Runs on the push thread.
+     * @param file the message file
+     */
+    private void push (Path file) {
+        pushing = true;
+        try {
+            pushContent(file);
+        } catch (RuntimeException e) {
+            System.out.println("Push of " +file+ " failed [" +e+ "]");
+            synchronized (retry) {
+                retry.add(file);
+            }
+        } finally {
+            pushing = false;
+        }
+    }
+
+    private void pushContent (Path file) {
+        String eunType = messageType(file);
+        List<FleetUpdate.SensorEntry> sensors = groups.get(file.getParent());
+        String name = file.getParent().getFileName() + "/" + file.getFileName();
+        if (sensors == null || sensors.isEmpty()) {
+            System.out.println(name + " has no sensors");
+            return;
+        }
+        byte[] message;
+        try {
+            message = Files.readAllBytes(file);
+        } catch (IOException e) {
+            // removed or renamed since the event
+            return;
+        }
+        if (message.length == 0) {
+            System.out.println(name + " is empty, not pushed");
+            return;
+        }
+        String hash = RecordCache.hash(message, 0, message.length);
+        if (hash.equals(pushed.get(file))) {
+            if (verbose) {
+                System.out.println(name + " unchanged, not pushed");
+            }
+            return;
+        }
+
+        System.out.println("\nPushing " +name+ " to " +sensors.size()+ " sensors");
+        long start = System.nanoTime();
+        // every sensor gets the bytes hashed above, even if the file is
+        // edited during the push, the edit is pushed next
+        FleetUpdate fleet = newFleet(file.toString(), eunType);
+        fleet.updateMessage = new String(message, StandardCharsets.UTF_8);
+        List<FleetUpdate.SensorResult> results = fleet.run(sensors);
+        FleetUpdate.printSummary(results);
+        if (scheduler != null) {
+            System.out.println(scheduler.summary());
+        }
+        System.out.println("Pushed " +name+ " in " + TimeUnit.NANOSECONDS
+                .toMillis(System.nanoTime() - start) + " ms");
+        EunUpdate.writeMetrics(metrics, metricsJsonFile, metricsPromFile);
+
+        boolean ok = true;
+        for (FleetUpdate.SensorResult result : results) {
+            ok &= result.ok;
+        }
+        if (ok) {
+            pushed.put(file, hash);
+        }
+        synchronized (retry) {
+            if (ok) {
+                retry.remove(file);
+            } else {
+                retry.add(file);
+            }
+        }
+    }
+
+    /**
+     * Touches every sensor so its pooled connection stays open, unless a
+     * push is running, queues the pushes that failed on some sensors again
+     * and writes the caches
+     */
+    private void keepWarm () {
+        if (sessionCache != null) {
+            sessionCache.flush();
+        }
+        if (recordCache != null) {
+            recordCache.flush();
+        }
+        Map<String, FleetUpdate.SensorEntry> sensors =
+                new LinkedHashMap<String, FleetUpdate.SensorEntry>();
+        for (List<FleetUpdate.SensorEntry> group : groups.values()) {
+            for (FleetUpdate.SensorEntry sensor : group) {
+                sensors.putIfAbsent(sensor.sensorUrl, sensor);
+            }
+        }
+        if (!pushing) {
+            int warm = newFleet(null, "").prewarmAll(
+                    new ArrayList<FleetUpdate.SensorEntry>(sensors.values()),
+                    new Semaphore(concurrency));
+            if (verbose || warm < sensors.size()) {
+                System.out.println(warm + " of " +sensors.size()+ " sensors answered");
+            }
+        }
+        long now = System.currentTimeMillis();
+        synchronized (retry) {
+            for (Path file : retry) {
+                pending.putIfAbsent(file, now - debounceMillis);
+            }
+            retry.clear();
+        }
+    }
+
+    /**
+     * @param updateFile the message file, null to only connect
+     * @param eunType the EUN type of the message file
+     * @return a fleet run with the settings of the daemon
+     */
+    private FleetUpdate newFleet (String updateFile, String eunType) {
+        Map<String, String> selectedTypes = new LinkedHashMap<String, String>();
+        if (updateFile != null) {
+            selectedTypes.put(eunType, EunUpdate.eunTypes.get(eunType));
+        }
+        FleetUpdate fleet = new FleetUpdate(selectedTypes,
+                updateFile != null ? updateFile : "", verbose, concurrency,
+                false, sessionCache);
+        fleet.recordCache = recordCache;
+        fleet.verifyOnly = verifyOnly;
+        fleet.scheduler = scheduler;
+        fleet.journal = journal;
+        fleet.retryPolicy = retryPolicy;
+        // keep-warm requests reuse pooled connections, they are not timed
+        fleet.metrics = updateFile != null ? metrics : null;
+        return fleet;
+    }
+
+    /**
+     * @param file a file in a group directory
+     * @return the EUN type name the file is the message of, or null if it
+     *         is not a message file
+     */
+    static String messageType (Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(MESSAGE_SUFFIX)) {
+            return null;
+        }
+        String base = name.substring(0, name.length() - MESSAGE_SUFFIX.length());
+        for (String eun : EunUpdate.eunTypes.keySet()) {
+            if (eun.equalsIgnoreCase(base)) {
+                return eun;
+            }
+        }
+        return null;
+    }
+}
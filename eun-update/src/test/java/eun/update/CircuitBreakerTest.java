@@ -0,0 +1,50 @@
+package eun.update;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Opens, trials and closes the circuit of one sensor
+ */
+class CircuitBreakerTest {
+    private static final String KEY = "127.0.0.1:443";
+
+    @Test
+    void opensAfterThresholdAndClosesOnTrialSuccess () throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(3, 50);
+        for (int n = 0; n < 3; n++) {
+            assertTrue(breaker.allow(KEY));
+            breaker.failure(KEY);
+        }
+        assertFalse(breaker.allow(KEY));
+        Thread.sleep(80);
+        assertTrue(breaker.allow(KEY), "trial");
+        assertFalse(breaker.allow(KEY), "second request during the trial");
+        breaker.success(KEY);
+        assertTrue(breaker.allow(KEY));
+        assertTrue(breaker.allow(KEY));
+    }
+
+    @Test
+    void failedTrialOpensAgain () throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.failure(KEY);
+        Thread.sleep(80);
+        assertTrue(breaker.allow(KEY));
+        breaker.failure(KEY);
+        assertFalse(breaker.allow(KEY));
+    }
+
+    @Test
+    void lostTrialDoesNotBlockForever () throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        breaker.failure(KEY);
+        Thread.sleep(80);
+        // the trial never reports success or failure
+        assertTrue(breaker.allow(KEY));
+        assertFalse(breaker.allow(KEY));
+        Thread.sleep(80);
+        assertTrue(breaker.allow(KEY), "a new trial after the open time");
+    }
+}
@@ -0,0 +1,103 @@
+package eun.update;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.nio.file.Paths;
+import java.util.concurrent.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Runs EunClient calls against an in-process SensorSimulator and checks
+ * that failures are typed and that nothing is printed
+ */
+class EunClientTest {
+    private SensorSimulator simulator;
+
+    private String sensorUrl;
+
+    @BeforeEach
+    void startSimulator () throws Exception {
+        simulator = new SensorSimulator();
+        simulator.port = 0;
+        simulator.start();
+        sensorUrl = "https://127.0.0.1:" + simulator.port();
+    }
+
+    @AfterEach
+    void stopSimulator () {
+        simulator.stop();
+    }
+
+    @Test
+    void updateAndFetch () throws Exception {
+        EunClient client = new EunClient(sensorUrl, "cisco", "cisco");
+        EunClient.UpdateResult result = client.update("Application", "Library message")
+                .get(30, TimeUnit.SECONDS);
+        assertTrue(result.isUpdated());
+        assertEquals("EUN message updated", result.getStatus());
+        assertEquals("Library message", client.fetch("Application")
+                .get(30, TimeUnit.SECONDS).getString("message"));
+        // the second call reused the session of the first
+        assertEquals(1, simulator.logins.get());
+    }
+
+    @Test
+    void rejectedLoginIsAuthentication () {
+        EunException e = failure(new EunClient(sensorUrl, "", "cisco")
+                .fetch("Application"));
+        assertEquals(EunException.Kind.AUTHENTICATION, e.getKind());
+        assertEquals(403, e.getHttpStatus());
+        assertEquals("Failed to authenticate", e.getMessage());
+    }
+
+    @Test
+    void serverErrorsThenOpenCircuit () throws Exception {
+        simulator.errorRate = 1.0;
+        EunClient client = new EunClient(sensorUrl, "cisco", "cisco");
+        PrintStream console = System.err;
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(stderr, true));
+        EunException first;
+        EunException second;
+        try {
+            first = failure(client.update("Application", "Never sent"));
+            second = failure(client.fetch("Application"));
+            SensorLog.flush(1000);
+        } finally {
+            System.setErr(console);
+        }
+        assertEquals(EunException.Kind.HTTP_STATUS, first.getKind());
+        assertEquals(500, first.getHttpStatus());
+        assertEquals(EunException.Kind.CIRCUIT_OPEN, second.getKind());
+        assertEquals(-1, second.getHttpStatus());
+        assertEquals("", stderr.toString(), "library calls logged");
+    }
+
+    @Test
+    void unreachableSensorIsConnection () throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        EunException e = failure(new EunClient("https://127.0.0.1:" + port,
+                "cisco", "cisco").fetch("Application"));
+        assertEquals(EunException.Kind.CONNECTION, e.getKind());
+    }
+
+    @Test
+    void unreadableImageIsLocalFile () {
+        EunException e = failure(new EunClient(sensorUrl, "cisco", "cisco")
+                .update("Application", null, Paths.get("/nonexistent/image.png")));
+        assertEquals(EunException.Kind.LOCAL_FILE, e.getKind());
+        assertEquals(0, simulator.requests.get());
+    }
+
+    private static EunException failure (CompletableFuture<?> call) {
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> call.get(60, TimeUnit.SECONDS));
+        return assertInstanceOf(EunException.class, e.getCause());
+    }
+}
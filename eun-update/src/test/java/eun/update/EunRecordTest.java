@@ -0,0 +1,189 @@
+package eun.update;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Flow;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Checks the byte-level record indexer and the spliced update body against
+ * org.json: every field decodes to what JSONObject reads, and the body sent
+ * by SplicePublisher parses to the record with only the message replaced.
+ */
+class EunRecordTest {
+    // records written with single quotes for readability, see json()
+    private static final String[] RECORDS = {
+        "{'id':8,'message':'Access is <b>restricted</b>.','image':'AAAA'}",
+        "{'caption':'say \\'hi\\' \\\\ there','message':'a \\'quoted\\' \\\\\\' word'}",
+        "{'message':'caf\\u00e9 \\ud83d\\ude00 \\u003cb\\u003e','raw':'café 😀 日本'}",
+        "{'meta':{'message':'inner','list':[1,{'x':'}]'}],'s':'{'},'message':'outer','n':null}",
+        "{'escapes':'\\n\\r\\t\\b\\f\\/','message':'line1\\nline2','ok':true,'n':-1.5e3}",
+        "  {\n  'id' : 3 ,\n  'message' : 'spaced' ,\n  'list' : [ 1 , 2 ]\n}\n",
+        "{'message':'','image':''}",
+    };
+
+    @Test
+    void decodesFieldsLikeOrgJson () throws IOException {
+        for (String text : RECORDS) {
+            String raw = json(text);
+            JSONObject expected = new JSONObject(raw);
+            EunRecord record = parse(raw);
+            assertEquals(expected.keySet(), record.fieldNames(), raw);
+            for (String name : expected.keySet()) {
+                Object value = expected.get(name);
+                if (value instanceof String) {
+                    assertEquals(value, record.getString(name), raw);
+                } else {
+                    assertNull(record.getString(name), raw);
+                }
+            }
+        }
+    }
+
+    @Test
+    void nestedMessageIsNotTopLevel () throws IOException {
+        EunRecord record = parse(json(RECORDS[3]));
+        assertEquals(Arrays.asList("meta", "message", "n"),
+                new ArrayList<String>(record.fieldNames()));
+        assertEquals("outer", record.getString("message"));
+        assertNull(record.getString("meta"));
+    }
+
+    @Test
+    void missingMessage () throws IOException {
+        EunRecord record = parse(json("{'id':8,'caption':'no message','image':'AAAA'}"));
+        assertFalse(record.has("message"));
+        assertNull(record.getString("message"));
+        IOException e = assertThrows(IOException.class, () -> record.spliceField(
+                "message", "\"x\"".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("EUN record has no message field", e.getMessage());
+    }
+
+    @Test
+    void rejectsMalformedRecords () {
+        for (String text : new String[] {"", "[]", "{'message'}",
+                "{'message':'open", "{'message':'bad \\x escape'}",
+                "{'message':'\\u12'}", "{'a':{'b':1}"}) {
+            assertThrows(IOException.class, () -> parse(json(text)).getString("message"),
+                    text);
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"New <b>message</b>", "with \"quotes\" and \\",
+            "unicode café 😀 日本", "control\n\t\u0001 chars", "</script>", ""})
+    void splicedBodyMatchesOrgJsonRoundTrip (String message) throws IOException {
+        for (String text : RECORDS) {
+            String raw = json(text);
+            EunRecord record = parse(raw);
+            List<ByteBuffer> parts = record.spliceField("message",
+                    JSONObject.quote(message).getBytes(StandardCharsets.UTF_8));
+            SplicePublisher publisher = new SplicePublisher(parts);
+            byte[] body = publish(publisher, Long.MAX_VALUE);
+
+            assertEquals(publisher.contentLength(), body.length);
+            JSONObject expected = new JSONObject(raw).put("message", message);
+            JSONObject sent = new JSONObject(new String(body, StandardCharsets.UTF_8));
+            assertTrue(expected.similar(sent), raw + " -> " + sent);
+
+            // everything outside the message value is sent as it was
+            int[] span = record.valueSpan("message");
+            String prefix = new String(record.array(), 0, span[0], StandardCharsets.UTF_8);
+            String suffix = new String(record.array(), span[1],
+                    record.length() - span[1], StandardCharsets.UTF_8);
+            assertEquals(prefix + JSONObject.quote(message) + suffix,
+                    new String(body, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void splicesSeveralFieldsInRecordOrder () throws IOException {
+        String raw = json(RECORDS[0]);
+        EunRecord record = parse(raw);
+        Map<String, ByteBuffer> values = new LinkedHashMap<String, ByteBuffer>();
+        values.put("image", ByteBuffer.wrap("\"BBBB\"".getBytes(StandardCharsets.UTF_8)));
+        values.put("message", ByteBuffer.wrap("\"new\"".getBytes(StandardCharsets.UTF_8)));
+        byte[] body = publish(new SplicePublisher(record.spliceFields(values)), 1);
+
+        JSONObject expected = new JSONObject(raw).put("image", "BBBB").put("message", "new");
+        assertTrue(expected.similar(new JSONObject(new String(body, StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void publisherResendsLargeBodies () throws IOException {
+        char[] image = new char[200 * 1024];
+        Arrays.fill(image, 'A');
+        String raw = "{\"message\":\"old\",\"image\":\"" + new String(image) + "\"}";
+        EunRecord record = parse(raw);
+        SplicePublisher publisher = new SplicePublisher(record.spliceField("message",
+                "\"new\"".getBytes(StandardCharsets.UTF_8)));
+        byte[] first = publish(publisher, 3);
+        byte[] retry = publish(publisher, Long.MAX_VALUE);
+        assertArrayEquals(first, retry);
+        assertEquals(raw.replace("\"old\"", "\"new\""),
+                new String(first, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param text JSON with ' for ", so the records above stay readable
+     */
+    private static String json (String text) {
+        return text.replace('\'', '"');
+    }
+
+    private static EunRecord parse (String raw) throws IOException {
+        ResponseBuffer buffer = new ResponseBuffer();
+        byte[] bytes = raw.getBytes(StandardCharsets.UTF_8);
+        buffer.readFrom(new ByteArrayInputStream(bytes), bytes.length);
+        return EunRecord.parse(buffer);
+    }
+
+    /**
+     * Collects a request body the way the HTTP client does
+     * @param publisher the body
+     * @param batch the demand raised at a time
+     */
+    private static byte[] publish (SplicePublisher publisher, long batch) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        boolean[] complete = new boolean[1];
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe (Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(batch);
+            }
+
+            @Override
+            public void onNext (ByteBuffer item) {
+                byte[] chunk = new byte[item.remaining()];
+                item.get(chunk);
+                bytes.write(chunk, 0, chunk.length);
+                if (batch != Long.MAX_VALUE) {
+                    subscription.request(1);
+                }
+            }
+
+            @Override
+            public void onError (Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete () {
+                complete[0] = true;
+            }
+        });
+        assertTrue(complete[0]);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,165 @@
+package eun.update;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs EunUpdate against an in-process SensorSimulator: the full login,
+ * fetch and update cycle, skipping a sensor that already has the message,
+ * retries after injected errors, expired sessions and a large compressed
+ * record in a small heap. Each test starts its own simulator on a free
+ * port, so the circuit breakers of one test never affect another.
+ */
+class EunUpdateSimulatorTest {
+    private static final PrintStream NO_OUTPUT =
+            new PrintStream(OutputStream.nullOutputStream());
+
+    private static final String APPLICATION = EunUpdate.eunTypes.get("Application");
+
+    private SensorSimulator simulator;
+
+    @AfterEach
+    void stopSimulator () {
+        if (simulator != null) {
+            simulator.stop();
+        }
+    }
+
+    @Test
+    void loginFetchUpdate () throws Exception {
+        startSimulator(SensorSimulator::new);
+        EunUpdate eunUpdate = newEunUpdate("New <b>message</b>");
+
+        assertTrue(eunUpdate.processUpdate(), eunUpdate.statusMessage);
+        assertTrue(eunUpdate.updated);
+        assertEquals("EUN message updated", eunUpdate.statusMessage);
+        assertEquals(1, simulator.logins.get());
+        assertEquals(1, simulator.fetches.get());
+        assertEquals(1, simulator.updates.get());
+
+        EunUpdate check = newEunUpdate(null);
+        EunRecord record = check.processFetch();
+        assertNotNull(record, check.statusMessage);
+        assertEquals("New <b>message</b>", record.getString("message"));
+        assertEquals("Simulated EUN 8", record.getString("caption"));
+    }
+
+    @Test
+    void skipsSensorThatHasTheMessage () throws Exception {
+        startSimulator(SensorSimulator::new);
+        EunUpdate first = newEunUpdate("Current message");
+        assertTrue(first.processUpdate(), first.statusMessage);
+
+        EunUpdate second = newEunUpdate("Current message");
+        assertTrue(second.processUpdate(), second.statusMessage);
+        assertFalse(second.updated);
+        assertEquals("Message already up to date", second.statusMessage);
+        assertEquals(1, simulator.updates.get());
+    }
+
+    @Test
+    void retriesAfterInjectedError () throws Exception {
+        startSimulator(SensorSimulator::new);
+        simulator.failNext.set(1);
+        EunUpdate eunUpdate = newEunUpdate("After a retry");
+
+        assertTrue(eunUpdate.processUpdate(), eunUpdate.statusMessage);
+        assertTrue(eunUpdate.updated);
+        assertEquals(1, simulator.injectedErrors.get());
+        assertEquals(1, simulator.logins.get());
+        assertEquals(1, simulator.updates.get());
+    }
+
+    @Test
+    void failsWhenEveryRequestErrors () throws Exception {
+        startSimulator(SensorSimulator::new);
+        simulator.errorRate = 1.0;
+        EunUpdate eunUpdate = newEunUpdate("Never sent");
+
+        assertFalse(eunUpdate.processUpdate());
+        assertEquals("Failed to authenticate", eunUpdate.statusMessage);
+        assertEquals(RetryPolicy.DEFAULT_RETRIES + 1, simulator.injectedErrors.get());
+        assertEquals(0, simulator.updates.get());
+    }
+
+    @Test
+    void logsInAgainAfterSessionExpired () throws Exception {
+        startSimulator(() -> {
+            SensorSimulator s = new SensorSimulator();
+            s.sessionSeconds = 1;
+            return s;
+        });
+        SessionCache sessions = new SessionCache(null,
+                SessionCache.DEFAULT_TTL_MINUTES);
+        EunUpdate first = newEunUpdate(null);
+        first.sessionCache = sessions;
+        assertNotNull(first.processFetch(), first.statusMessage);
+        assertEquals(1, simulator.logins.get());
+
+        Thread.sleep(1500);
+        EunUpdate second = newEunUpdate("After the session expired");
+        second.sessionCache = sessions;
+        assertTrue(second.processUpdate(), second.statusMessage);
+        assertTrue(second.updated);
+        assertEquals(1, simulator.expiredSessions.get());
+        assertEquals(2, simulator.logins.get());
+    }
+
+    /**
+     * A 20 MB image inflated from a gzip response has to fit in the same
+     * 64 MB heap as an uncompressed one. The fetch runs in its own JVM,
+     * since the simulator holds several copies of the record.
+     */
+    @Test
+    void fetchesLargeCompressedRecordInSmallHeap (@TempDir Path home)
+            throws Exception {
+        startSimulator(() -> {
+            SensorSimulator s = new SensorSimulator();
+            s.imageBytes = 20000000;
+            return s;
+        });
+        Path java = Paths.get(System.getProperty("java.home"), "bin", "java");
+        Process process = new ProcessBuilder(java.toString(),
+                "-XX:+UseG1GC", "-Xmx64m", "-Duser.home=" + home,
+                "-cp", System.getProperty("java.class.path"),
+                "eun.update.EunUpdate", sensorUrl(), "Application",
+                "-u", "cisco/cisco", "-s", "0")
+                .redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(),
+                StandardCharsets.UTF_8);
+        assertTrue(process.waitFor(120, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue(), output);
+        assertTrue(output.contains("No message file specified"), output);
+        assertFalse(output.contains("OutOfMemoryError"), output);
+        // the base64 image alone is 4/3 of the image bytes
+        assertTrue(simulator.fetchBytes.get() < 20000000L * 4 / 3,
+                "record was not compressed: " + simulator.statistics());
+    }
+
+    private void startSimulator (Supplier<SensorSimulator> factory)
+            throws Exception {
+        simulator = factory.get();
+        simulator.port = 0;
+        simulator.start();
+    }
+
+    private String sensorUrl () {
+        return "https://127.0.0.1:" + simulator.port();
+    }
+
+    private EunUpdate newEunUpdate (String message) {
+        EunUpdate eunUpdate = new EunUpdate(sensorUrl(), APPLICATION,
+                "cisco", "cisco", "", false);
+        eunUpdate.updateMessage = message;
+        eunUpdate.out = NO_OUTPUT;
+        return eunUpdate;
+    }
+}
@@ -0,0 +1,105 @@
+package eun.update;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Feeds RequestScheduler synthetic latencies: ordinary variance must not
+ * lower the limit, a latency that stays high and overload failures must,
+ * failures of a single sensor must not.
+ */
+class RequestSchedulerTest {
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    void noisyLatencyIsNotOverload () {
+        RequestScheduler scheduler = new RequestScheduler(16, 0, 0);
+        Random random = new Random(42);
+        for (int n = 0; n < 5000; n++) {
+            // log-normal around 20 ms, a few requests take 5 times as long
+            long latency = (long) (20 * MILLIS * Math.exp(0.5 * random.nextGaussian()));
+            release(scheduler, "fetch", latency, null);
+        }
+        assertEquals(0, decreases(scheduler), scheduler.summary());
+        assertTrue(scheduler.summary().startsWith("Adaptive concurrency 16 "),
+                scheduler.summary());
+    }
+
+    @Test
+    void sustainedLatencyIsOverload () {
+        RequestScheduler scheduler = new RequestScheduler(16, 0, 0);
+        for (int n = 0; n < 200; n++) {
+            release(scheduler, "fetch", 20 * MILLIS, null);
+        }
+        assertEquals(0, decreases(scheduler));
+        for (int n = 0; n < 20; n++) {
+            release(scheduler, "fetch", 80 * MILLIS, null);
+        }
+        assertTrue(decreases(scheduler) >= 1, scheduler.summary());
+    }
+
+    @Test
+    void shortSpikesAreNotOverload () {
+        RequestScheduler scheduler = new RequestScheduler(16, 0, 0);
+        for (int n = 0; n < 1000; n++) {
+            boolean spike = n % 50 < 3;
+            release(scheduler, "update", (spike ? 200 : 20) * MILLIS, null);
+        }
+        assertEquals(0, decreases(scheduler), scheduler.summary());
+    }
+
+    @Test
+    void failuresAreOverload () {
+        for (IOException failure : new IOException[] {
+                new HttpStatusException(503, "Service Unavailable"),
+                new HttpStatusException(429, "Too Many Requests"),
+                new HttpTimeoutException("request timed out") }) {
+            RequestScheduler scheduler = new RequestScheduler(16, 0, 0);
+            for (int n = 0; n < 100; n++) {
+                release(scheduler, "login", 20 * MILLIS, null);
+            }
+            release(scheduler, "login", 20 * MILLIS, failure);
+            assertEquals(1, decreases(scheduler), failure + " " + scheduler.summary());
+        }
+    }
+
+    @Test
+    void sensorFailuresAreNotOverload () {
+        RequestScheduler scheduler = new RequestScheduler(16, 0, 0);
+        for (int n = 0; n < 100; n++) {
+            release(scheduler, "fetch", 20 * MILLIS, null);
+        }
+        for (int n = 0; n < 20; n++) {
+            release(scheduler, "fetch", 20 * MILLIS,
+                    new ConnectException("Connection refused"));
+            release(scheduler, "fetch", 20 * MILLIS,
+                    new HttpStatusException(404, "Not Found"));
+            release(scheduler, "fetch", 20 * MILLIS,
+                    new CircuitOpenException("https://10.0.0.1"));
+        }
+        assertEquals(0, decreases(scheduler), scheduler.summary());
+        assertTrue(scheduler.summary().startsWith("Adaptive concurrency 16 "),
+                scheduler.summary());
+    }
+
+    /**
+     * Releases a request that took latency, as if it started latency ago
+     */
+    private static void release (RequestScheduler scheduler, String kind,
+            long latency, IOException failure) {
+        scheduler.acquire("https://127.0.0.1");
+        scheduler.release(kind, System.nanoTime() - latency, failure);
+    }
+
+    private static int decreases (RequestScheduler scheduler) {
+        String summary = scheduler.summary();
+        return Integer.parseInt(summary.substring(summary.lastIndexOf(", ") + 2,
+                summary.indexOf(" decreases")));
+    }
+}
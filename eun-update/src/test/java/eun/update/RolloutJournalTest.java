@@ -0,0 +1,62 @@
+package eun.update;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Appends outcomes, reopens the journal and resumes from it
+ */
+class RolloutJournalTest {
+    private static final String SENSOR = "https://10.0.0.1";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void resumeSkipsCompletedSensors () throws IOException {
+        Path file = dir.resolve("journal.log");
+        RolloutJournal journal = new RolloutJournal(file, false);
+        journal.append(SENSOR, "Application", RolloutJournal.UPDATED,
+                "a", "b", "m1", "EUN message updated");
+        journal.append("https://10.0.0.2", "Application", RolloutJournal.FAILED,
+                "a", null, "m1", "Failed to authenticate");
+        journal.close();
+
+        RolloutJournal resumed = new RolloutJournal(file, true);
+        assertTrue(resumed.isDone(SENSOR, "Application", "m1"));
+        assertFalse(resumed.isDone(SENSOR, "Application", "m2"));
+        assertFalse(resumed.isDone("https://10.0.0.2", "Application", "m1"));
+        resumed.close();
+    }
+
+    @Test
+    void lineAfterATornLineIsKept () throws IOException {
+        Path file = dir.resolve("journal.log");
+        RolloutJournal journal = new RolloutJournal(file, false);
+        journal.append(SENSOR, "Application", RolloutJournal.UPDATED,
+                "a", "b", "m1", "EUN message updated");
+        journal.close();
+        // a crash in the middle of the next line
+        Files.write(file, "2026-01-01T00:00:00Z\thttps://10.0.0.2\tApp"
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        journal = new RolloutJournal(file, false);
+        journal.append("https://10.0.0.3", "Application", RolloutJournal.UPDATED,
+                "a", "b", "m1", "EUN message updated");
+        journal.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(2).contains("https://10.0.0.3"), lines.get(2));
+        RolloutJournal resumed = new RolloutJournal(file, true);
+        assertTrue(resumed.isDone("https://10.0.0.3", "Application", "m1"));
+        resumed.close();
+    }
+}
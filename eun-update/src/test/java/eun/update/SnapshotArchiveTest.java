@@ -0,0 +1,82 @@
+package eun.update;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Writes snapshots and reads them back, with intact and tampered images
+ */
+class SnapshotArchiveTest {
+    private static final String SENSOR = "https://10.0.0.1";
+
+    private static final String RECORD =
+            "{\"id\":8,\"message\":\"Saved\",\"image\":\"QUJDRA==\"}";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void restoresTheRecordAsFetched () throws IOException {
+        Path file = write();
+        try (SnapshotArchive snapshot = SnapshotArchive.open(file)) {
+            assertEquals(RECORD, text(snapshot.record(SENSOR, "Application")));
+            assertNull(snapshot.record(SENSOR, "Block"));
+        }
+    }
+
+    @Test
+    void rejectsAnImageThatDoesNotMatchItsHash () throws IOException {
+        Path file = write();
+        Path tampered = dir.resolve("tampered.zip");
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(file));
+             ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(tampered))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                byte[] data = in.readAllBytes();
+                if (entry.getName().startsWith("blobs/")) {
+                    data = "\"RURDQg==\"".getBytes(StandardCharsets.US_ASCII);
+                }
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                out.write(data);
+                out.closeEntry();
+            }
+        }
+        try (SnapshotArchive snapshot = SnapshotArchive.open(tampered)) {
+            IOException e = assertThrows(IOException.class,
+                    () -> snapshot.record(SENSOR, "Application"));
+            assertTrue(e.getMessage().contains("does not match its hash"),
+                    e.getMessage());
+        }
+    }
+
+    private Path write () throws IOException {
+        Path file = dir.resolve("snapshot.zip");
+        try (SnapshotArchive snapshot = SnapshotArchive.create(file)) {
+            ResponseBuffer response = new ResponseBuffer();
+            byte[] bytes = RECORD.getBytes(StandardCharsets.UTF_8);
+            response.readFrom(new ByteArrayInputStream(bytes), bytes.length);
+            snapshot.add(SENSOR, "Application", response);
+        }
+        return file;
+    }
+
+    private static String text (List<ByteBuffer> parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (ByteBuffer part : parts) {
+            ByteBuffer b = part.duplicate();
+            byte[] chunk = new byte[b.remaining()];
+            b.get(chunk);
+            bytes.write(chunk, 0, chunk.length);
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}